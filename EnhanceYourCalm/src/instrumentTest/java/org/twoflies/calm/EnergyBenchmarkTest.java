@@ -0,0 +1,169 @@
+package org.twoflies.calm;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark which runs a 60 minute session in virtual time, and fails if its estimated energy
+ * exceeds the budget.  The real Timer ticks on a fake clock and publishes through its event
+ * stream to a listener on the main thread, which updates a TimerProgressView the way MainActivity
+ * does and draws it whenever it was invalidated, so the ticks and frames estimated are those the
+ * app code actually records.  Run on a device (gradle connectedInstrumentTest).
+ */
+public class EnergyBenchmarkTest extends InstrumentationTestCase {
+
+    private static final String TAG = "EnergyBenchmarkTest";
+
+    private static final long SESSION_MS = 60 * 60 * 1000;
+    // Length of the bell (bowl.mp3)
+    private static final long BELL_MS = 42 * 1000;
+    // Budget with the default cost model; about 2% above the estimate when this was written
+    private static final double BUDGET_MILLIJOULES = 1132000.0;
+    // Size of the drawn TimerProgressView
+    private static final int VIEW_WIDTH = 480;
+    private static final int VIEW_HEIGHT = 640;
+    // Time allowed for an event to be delivered
+    private static final long DELIVERY_TIMEOUT_MS = 5 * 1000;
+
+    private Context context = null;
+    private TimerProgressView progressView = null;
+    private Canvas canvas = null;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.context = this.getInstrumentation().getTargetContext();
+        this.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                progressView = new TimerProgressView(context, null);
+                progressView.measure(View.MeasureSpec.makeMeasureSpec(VIEW_WIDTH, View.MeasureSpec.EXACTLY),
+                                     View.MeasureSpec.makeMeasureSpec(VIEW_HEIGHT, View.MeasureSpec.EXACTLY));
+                progressView.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+                progressView.updateProgress(0.0f, context.getString(R.string.message_press_to_start));
+
+                canvas = new Canvas(Bitmap.createBitmap(VIEW_WIDTH, VIEW_HEIGHT, Bitmap.Config.ARGB_8888));
+                progressView.draw(canvas);
+            }
+        });
+    }
+
+    public void testSessionWithinBudget() throws Exception {
+        FakeClock clock = new FakeClock();
+        final Timer timer = new Timer(SESSION_MS, true, clock);
+        final Semaphore ticks = new Semaphore(0);
+        final Semaphore elapses = new Semaphore(0);
+        final String message = this.context.getString(R.string.message_press_to_stop);
+        timer.addOnTimerListener(new Timer.OnTimerListener() {
+            @Override
+            public void onTimerStarted(long remainingInterval, long deadline) {
+                // no-op
+            }
+
+            @Override
+            public void onTimerStopped(long remainingInterval) {
+                // no-op
+            }
+
+            @Override
+            public void onTimerTick(long remainingInterval) {
+                progressView.updateProgress((SESSION_MS - remainingInterval) / (float)SESSION_MS, message);
+                // the next frame
+                if (progressView.isDirty()) progressView.draw(canvas);
+                ticks.release();
+            }
+
+            @Override
+            public void onTimerElapsed() {
+                elapses.release();
+            }
+        });
+
+        EnergyEstimator estimator = EnergyEstimator.getSessionEstimator();
+        estimator.stopScreenOn(clock.elapsedRealtime());
+        estimator.reset(clock.elapsedRealtime());
+
+        // session, screen kept on; each tick is delivered before the next, as on an idle device
+        estimator.startScreenOn(clock.elapsedRealtime());
+        timer.start();
+        while (!timer.isElapsed()) {
+            clock.advance(Timer.TIMER_DELAY_MS);
+            assertTrue(ticks.tryAcquire(DELIVERY_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+        assertTrue(elapses.tryAcquire(DELIVERY_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        estimator.stopScreenOn(clock.elapsedRealtime());
+
+        // bell
+        estimator.startAudio(clock.elapsedRealtime());
+        clock.advance(BELL_MS);
+        estimator.stopAudio(clock.elapsedRealtime());
+
+        double estimate = estimator.estimate(EnergyEstimator.CostModel.DEFAULT, clock.elapsedRealtime());
+        Log.i(TAG, String.format(Locale.US, "Estimated energy: %.0f mJ (budget %.0f mJ): %s", estimate, BUDGET_MILLIJOULES, estimator));
+
+        // at most one frame per tick
+        assertTrue(estimator.getFrames() <= estimator.getTicks());
+        assertTrue("Energy estimate regressed", estimate <= BUDGET_MILLIJOULES);
+    }
+
+    /**
+     * Clock in virtual time, which runs its delayed runnables on the thread advancing it.
+     */
+    private static class FakeClock implements Timer.Clock {
+
+        private long time = 1000L;  // timers treat a start time of 0 as not running
+        private List<Runnable> runnables = new ArrayList<Runnable>();
+        private List<Long> times = new ArrayList<Long>();
+
+        @Override
+        public long elapsedRealtime() {
+            return this.time;
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delay) {
+            this.runnables.add(runnable);
+            this.times.add(this.time + delay);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            for (int index = this.runnables.size() - 1; index >= 0; index--) {
+                if (this.runnables.get(index) == runnable) {
+                    this.runnables.remove(index);
+                    this.times.remove(index);
+                }
+            }
+        }
+
+        /**
+         * Advances the clock by the given delay, running the runnables which become due in order.
+         * @param delay
+         */
+        public void advance(long delay) {
+            long end = this.time + delay;
+            while (true) {
+                int next = -1;
+                for (int index = 0; index < this.times.size(); index++) {
+                    if ((this.times.get(index) <= end) && ((next < 0) || (this.times.get(index) < this.times.get(next)))) next = index;
+                }
+                if (next < 0) break;
+
+                this.time = this.times.remove(next);
+                this.runnables.remove(next).run();
+            }
+            this.time = end;
+        }
+    }
+}
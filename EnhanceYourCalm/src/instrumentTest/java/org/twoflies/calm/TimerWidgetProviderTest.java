@@ -0,0 +1,87 @@
+package org.twoflies.calm;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Tests for TimerWidgetProvider, run on a device (gradle connectedInstrumentTest).
+ */
+public class TimerWidgetProviderTest extends InstrumentationTestCase {
+
+    private static final long INTERVAL = 2 * 1000;  // 2 seconds
+    // Time allowed for the elapse alarm to be delivered after the deadline
+    private static final long ALARM_TIMEOUT_MS = 10 * 1000;
+    private static final long POLL_MS = 50L;
+
+    private Context context = null;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.context = this.getInstrumentation().getTargetContext();
+        this.saveTimer(INTERVAL);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TimerWidgetProvider.cancelElapseAlarm(this.context);
+        this.context.stopService(new Intent(this.context, AlarmService.class));
+        this.saveTimer(Timer.DEFAULT_INTERVAL);
+
+        super.tearDown();
+    }
+
+    /**
+     * A session started from the widget wakes the process twice: on start and on elapse.
+     */
+    public void testSessionWakesProcessTwice() throws Exception {
+        EnergyEstimator estimator = EnergyEstimator.getSessionEstimator();
+        estimator.reset(SystemClock.elapsedRealtime());
+
+        this.context.sendBroadcast(new Intent(this.context, TimerWidgetProvider.class).setAction(TimerWidgetProvider.ACTION_SWITCH));
+
+        long timeout = SystemClock.elapsedRealtime() + INTERVAL + ALARM_TIMEOUT_MS;
+        // the checkpoint reads as elapsed from the deadline, so wait for the alarm's wakeup
+        while ((estimator.getWakeups() < 2L) && (SystemClock.elapsedRealtime() < timeout)) {
+            SystemClock.sleep(POLL_MS);
+        }
+        // let any further (unexpected) wakeups arrive
+        SystemClock.sleep(INTERVAL);
+
+        assertTrue(this.loadTimer().isElapsed());
+        assertEquals(2L, estimator.getWakeups());
+    }
+
+    /**
+     * Saves a stopped timer with the given interval as the shared checkpoint.
+     * @param interval
+     */
+    private void saveTimer(final long interval) {
+        // timers need a Looper
+        this.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                TimerCheckpoint.save(context, new Timer(interval, false), false);
+            }
+        });
+    }
+
+    /**
+     * Loads a timer from the shared checkpoint.
+     */
+    private Timer loadTimer() {
+        final Timer[] timer = new Timer[1];
+        this.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                timer[0] = new Timer(Timer.DEFAULT_INTERVAL, false);
+                TimerCheckpoint.restore(context, timer[0]);
+            }
+        });
+
+        return timer[0];
+    }
+}
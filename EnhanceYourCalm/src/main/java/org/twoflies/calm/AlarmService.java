@@ -0,0 +1,140 @@
+package org.twoflies.calm;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.os.IBinder;
+import android.util.Log;
+import android.widget.Toast;
+
+import junit.framework.Assert;
+
+/**
+ * Service playing the "alarm" (the bowl) on the alarm stream with transient audio focus.  Playing
+ * from a started service keeps the process alive until the alarm has played out, also when it is
+ * started from a broadcast (the widget's elapse alarm) which returns immediately.
+ */
+public class AlarmService extends Service implements AudioManager.OnAudioFocusChangeListener, MediaPlayer.OnCompletionListener, MediaPlayer.OnErrorListener {
+
+    private static final String TAG = "AlarmService";
+
+    private AudioManager audioManager = null;
+    private MediaPlayer player = null;
+
+    /**
+     * Plays the alarm, unless it is already playing.
+     * @param context
+     */
+    public static void play(Context context) {
+        Assert.assertNotNull(context);
+
+        context.startService(new Intent(context, AlarmService.class));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (this.player != null) return START_NOT_STICKY;  // already playing
+
+        boolean traced = Tracer.beginSection("AlarmService.play");
+        try {
+            this.audioManager = (AudioManager)this.getSystemService(Context.AUDIO_SERVICE);
+            // Request "transient" audio focus
+            if ((this.audioManager != null) && (this.audioManager.requestAudioFocus(this, AudioManager.STREAM_ALARM, AudioManager.AUDIOFOCUS_GAIN_TRANSIENT) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED)) {
+                this.player = this.createPlayer();
+            }
+            if (this.player != null) {
+                this.player.start();
+                // will be released in OnCompletion
+            }
+            else  // at least "toast" ;-)
+            {
+                Toast.makeText(this, this.getString(R.string.toast_alarm_expired), Toast.LENGTH_LONG).show();
+                this.stopSelf();
+            }
+        }
+        finally {
+            Tracer.endSection(traced);
+        }
+
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        this.releasePlayer();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /* AudioManager.OnAudioFocusChangeListener */
+
+    @Override
+    public void onAudioFocusChange(int i) {
+        // no-op
+    }
+
+    /* MediaPlayer.OnCompletionListener */
+
+    @Override
+    public void onCompletion(MediaPlayer player) {
+        this.stopSelf();
+    }
+
+    /* MediaPlayer.OnErrorListener */
+
+    @Override
+    public boolean onError(MediaPlayer player, int what, int extra) {
+        Log.e(TAG, "Unable to play alarm (" + what + ", " + extra + ")");
+        this.stopSelf();
+        return true;
+    }
+
+    /**
+     * Creates a player for the alarm on the alarm stream (which MediaPlayer.create cannot do, since
+     * the stream must be set before the player is prepared).
+     * @return the prepared player, or null if it could not be created.
+     */
+    private MediaPlayer createPlayer() {
+        MediaPlayer player = new MediaPlayer();
+        try {
+            AssetFileDescriptor descriptor = this.getResources().openRawResourceFd(R.raw.bowl);
+            try {
+                player.setDataSource(descriptor.getFileDescriptor(), descriptor.getStartOffset(), descriptor.getLength());
+            }
+            finally {
+                descriptor.close();
+            }
+            player.setAudioStreamType(AudioManager.STREAM_ALARM);
+            player.setOnCompletionListener(this);
+            player.setOnErrorListener(this);
+            player.prepare();
+            Tracer.increment(Tracer.COUNTER_DECODES);
+
+            return player;
+        }
+        catch (Exception exception) {
+            Log.e(TAG, "Unable to create alarm player", exception);
+            player.release();
+            return null;
+        }
+    }
+
+    /**
+     * Releases the player, if any, and abandons audio focus.
+     */
+    private void releasePlayer() {
+        if (this.player != null) {
+            this.player.release();
+            this.player = null;
+        }
+        if (this.audioManager != null) this.audioManager.abandonAudioFocus(this);
+    }
+}
@@ -0,0 +1,233 @@
+package org.twoflies.calm;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.io.IOException;
+import java.nio.ShortBuffer;
+
+/**
+ * Plays a looping ambient soundscape.  The sound resource is decoded once by PcmCache, and its
+ * memory-mapped PCM is streamed to an AudioTrack on a background thread.  The loop point is
+ * crossfaded sample-accurately, so the loop is gapless.  The player holds audio focus while
+ * playing, pausing on a (transient) loss of focus and ducking when asked to.
+ */
+public class AmbientPlayer implements Runnable, AudioManager.OnAudioFocusChangeListener {
+
+    private static final String TAG = "AmbientPlayer";
+
+    // Durations of the loop crossfade and the pause/resume fade
+    private static final int CROSSFADE_MS = 1500;
+    private static final int FADE_MS = 250;
+    // Frames written to the AudioTrack at a time
+    private static final int CHUNK_FRAMES = 512;
+    // Gain while ducked for another focus holder
+    private static final float DUCK_GAIN = 0.2f;
+
+    private Context context = null;
+    private int resourceId = 0;
+    private AudioManager audioManager = null;
+    //
+    private final Object lock = new Object();
+    private Thread thread = null;
+    private boolean playing = false;
+    private boolean focusLost = false;  // transiently, so playback resumes when focus is regained
+    private boolean ducked = false;
+    private boolean released = false;
+
+    /**
+     * Creates an ambient player for the given raw sound resource.
+     * @param context
+     * @param resourceId
+     */
+    public AmbientPlayer(Context context, int resourceId) {
+        Assert.assertNotNull(context);
+
+        this.context = context.getApplicationContext();
+        this.resourceId = resourceId;
+        this.audioManager = (AudioManager)this.context.getSystemService(Context.AUDIO_SERVICE);
+    }
+
+    /**
+     * Starts or resumes playback, fading in, if audio focus is granted.
+     */
+    public void play() {
+        synchronized (this.lock) {
+            if (this.released || this.playing) return;
+        }
+        if ((this.audioManager == null) || (this.audioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN) != AudioManager.AUDIOFOCUS_REQUEST_GRANTED)) return;
+
+        synchronized (this.lock) {
+            this.playing = true;
+            this.focusLost = false;
+            this.ducked = false;
+            if (this.thread == null) {
+                this.thread = new Thread(this, TAG);
+                this.thread.start();
+            }
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Pauses playback, fading out.
+     */
+    public void pause() {
+        synchronized (this.lock) {
+            this.playing = false;
+        }
+        if (this.audioManager != null) this.audioManager.abandonAudioFocus(this);
+    }
+
+    /**
+     * Stops playback and releases all resources.  The player cannot be used afterwards.
+     */
+    public void release() {
+        synchronized (this.lock) {
+            this.playing = false;
+            this.released = true;
+            this.lock.notifyAll();
+        }
+        if (this.audioManager != null) this.audioManager.abandonAudioFocus(this);
+    }
+
+    /* AudioManager.OnAudioFocusChangeListener */
+
+    @Override
+    public void onAudioFocusChange(int focusChange) {
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_LOSS:
+                // until played again
+                this.pause();
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                synchronized (this.lock) {
+                    this.focusLost = true;
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                synchronized (this.lock) {
+                    this.ducked = true;
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_GAIN:
+                synchronized (this.lock) {
+                    this.focusLost = false;
+                    this.ducked = false;
+                    this.lock.notifyAll();
+                }
+                break;
+        }
+    }
+
+    /* Runnable */
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        AudioTrack track = null;
+        try {
+            PcmCache.Pcm pcm = PcmCache.map(this.context, this.resourceId);
+
+            int channelConfig = (pcm.getChannelCount() == 1) ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+            int bufferSize = AudioTrack.getMinBufferSize(pcm.getSampleRate(), channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+            track = new AudioTrack(AudioManager.STREAM_MUSIC, pcm.getSampleRate(), channelConfig, AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+
+            this.stream(track, pcm.getSamples(), pcm.getSampleRate(), pcm.getChannelCount());
+        }
+        catch (IOException exception) {
+            Log.e(TAG, "Unable to play ambient sound", exception);
+        }
+        catch (RuntimeException exception) {
+            // decoder, format or AudioTrack errors, which must not take the process down
+            Log.e(TAG, "Unable to play ambient sound", exception);
+        }
+        finally {
+            if (track != null) track.release();
+        }
+    }
+
+    /**
+     * Streams the given samples to the given track until released, looping with a crossfade and
+     * fading in and out on play and pause.
+     * @param track
+     * @param samples
+     * @param sampleRate
+     * @param channelCount
+     */
+    private void stream(AudioTrack track, ShortBuffer samples, int sampleRate, int channelCount) {
+        int frameCount = samples.capacity() / channelCount;
+        int crossfadeFrames = Math.min((sampleRate * CROSSFADE_MS) / 1000, frameCount / 2);
+        int loopEnd = frameCount - crossfadeFrames;
+        float fadeStep = 1000.0f / (sampleRate * FADE_MS);
+
+        short[] chunk = new short[CHUNK_FRAMES * channelCount];
+        int position = 0;
+        float gain = 0.0f;
+        boolean trackPlaying = false;
+
+        while (true) {
+            boolean playing;
+            boolean ducked;
+            synchronized (this.lock) {
+                // wait while paused or without focus (and faded out)
+                while (!this.released && !(this.playing && !this.focusLost) && (gain == 0.0f)) {
+                    if (trackPlaying) {
+                        track.pause();
+                        trackPlaying = false;
+                        EnergyEstimator.getSessionEstimator().stopAudio(SystemClock.elapsedRealtime());
+                    }
+                    try {
+                        this.lock.wait();
+                    }
+                    catch (InterruptedException exception) {
+                        return;
+                    }
+                }
+                if (this.released) {
+                    if (trackPlaying) EnergyEstimator.getSessionEstimator().stopAudio(SystemClock.elapsedRealtime());
+                    return;
+                }
+                playing = this.playing && !this.focusLost;
+                ducked = this.ducked;
+            }
+
+            if (!trackPlaying) {
+                track.play();
+                trackPlaying = true;
+                EnergyEstimator.getSessionEstimator().startAudio(SystemClock.elapsedRealtime());
+            }
+
+            float targetGain = playing ? (ducked ? DUCK_GAIN : 1.0f) : 0.0f;
+            for (int frame = 0; frame < CHUNK_FRAMES; frame++) {
+                // step the gain towards its target
+                if (gain < targetGain) gain = Math.min(gain + fadeStep, targetGain);
+                else if (gain > targetGain) gain = Math.max(gain - fadeStep, targetGain);
+
+                for (int c = 0; c < channelCount; c++) {
+                    float sample = samples.get((position * channelCount) + c);
+                    if (position >= loopEnd) {
+                        // crossfade the tail of the loop into its head
+                        int offset = position - loopEnd;
+                        float fade = offset / (float)crossfadeFrames;
+                        sample = (sample * (1.0f - fade)) + (samples.get((offset * channelCount) + c) * fade);
+                    }
+                    chunk[(frame * channelCount) + c] = (short)(sample * gain);
+                }
+
+                // after the crossfade, continue from the end of the head
+                if (++position == frameCount) position = crossfadeFrames;
+            }
+
+            track.write(chunk, 0, chunk.length);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package org.twoflies.calm;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Plays bells at scheduled times, aligned against the audio clock rather than the main thread.
+ * Shortly before each bell an AudioTrack is started and fed silence up to the frame that will be
+ * played at the bell's deadline, followed by the bell's memory-mapped PCM (see PcmCache).  If the
+ * bell sound cannot be loaded or played, the scheduler is marked as failed (see isFailed), so the
+ * caller can fall back to playing the alarm itself.
+ */
+public class BellScheduler implements Runnable, AudioManager.OnAudioFocusChangeListener {
+
+    private static final String TAG = "BellScheduler";
+
+    // Time before a bell at which its audio output is started
+    private static final long LEAD_MS = 1000L;
+    // Frames written to the AudioTrack at a time
+    private static final int CHUNK_FRAMES = 256;
+    // Polling delay while waiting for the audio clock
+    private static final long POLL_MS = 5L;
+
+    private Context context = null;
+    private int resourceId = 0;
+    private OnBellListener listener = null;
+    private Handler handler = new Handler();
+    //
+    private final Object lock = new Object();
+    private Thread thread = null;
+    // pending deadlines on the SystemClock.elapsedRealtime timeline, in order
+    private List<Long> deadlines = new ArrayList<Long>();
+    // incremented by cancel, so a bell being lined up can tell it was cancelled
+    private int generation = 0;
+    private boolean released = false;
+    private boolean failed = false;
+
+    /**
+     * Creates a bell scheduler for the given raw sound resource.
+     * @param context
+     * @param resourceId
+     * @param listener
+     */
+    public BellScheduler(Context context, int resourceId, OnBellListener listener) {
+        Assert.assertNotNull(context);
+        // listener can be null
+
+        this.context = context.getApplicationContext();
+        this.resourceId = resourceId;
+        this.listener = listener;
+    }
+
+    /**
+     * Schedules a bell to start playing at the given time.
+     * @param deadline time on the SystemClock.elapsedRealtime timeline.
+     */
+    public void schedule(long deadline) {
+        Assert.assertTrue(deadline > 0L);
+
+        synchronized (this.lock) {
+            if (this.released || this.failed) return;
+
+            this.deadlines.add(deadline);
+            Collections.sort(this.deadlines);
+            if (this.thread == null) {
+                this.thread = new Thread(this, TAG);
+                this.thread.start();
+            }
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Cancels all bells that have not started playing.
+     */
+    public void cancel() {
+        synchronized (this.lock) {
+            this.deadlines.clear();
+            this.generation++;
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns whether the bell sound could not be loaded or played, in which case no further bells
+     * are played.
+     */
+    public boolean isFailed() {
+        synchronized (this.lock) {
+            return this.failed;
+        }
+    }
+
+    /**
+     * Cancels all bells and releases all resources.  The scheduler cannot be used afterwards.
+     */
+    public void release() {
+        synchronized (this.lock) {
+            this.deadlines.clear();
+            this.generation++;
+            this.released = true;
+            this.lock.notifyAll();
+        }
+    }
+
+    /* Runnable */
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        PcmCache.Pcm pcm;
+        try {
+            // decode (if necessary) and map ahead of the first bell
+            pcm = PcmCache.map(this.context, this.resourceId);
+        }
+        catch (IOException exception) {
+            Log.e(TAG, "Unable to load bell sound", exception);
+            this.fail();
+            return;
+        }
+        catch (RuntimeException exception) {
+            // decoder or format errors, which must not take the process down
+            Log.e(TAG, "Unable to load bell sound", exception);
+            this.fail();
+            return;
+        }
+
+        while (true) {
+            long deadline;
+            int generation;
+            synchronized (this.lock) {
+                // wait until the next bell is due to be lined up
+                while (true) {
+                    if (this.released) return;
+
+                    if (this.deadlines.isEmpty()) {
+                        this.waitForLock(0L);
+                        continue;
+                    }
+                    long delay = this.deadlines.get(0) - LEAD_MS - SystemClock.elapsedRealtime();
+                    if (delay <= 0L) break;
+                    this.waitForLock(delay);
+                }
+                deadline = this.deadlines.remove(0);
+                generation = this.generation;
+            }
+
+            try {
+                this.ring(pcm, deadline, generation);
+            }
+            catch (RuntimeException exception) {
+                // AudioTrack errors, which must not take the process down
+                Log.e(TAG, "Unable to play bell sound", exception);
+                this.fail();
+                return;
+            }
+        }
+    }
+
+    /* AudioManager.OnAudioFocusChangeListener */
+
+    @Override
+    public void onAudioFocusChange(int i) {
+        // no-op
+    }
+
+    /**
+     * Plays the given bell sound so that its first frame is played at the given deadline, unless
+     * cancelled first.
+     * @param pcm
+     * @param deadline
+     * @param generation
+     */
+    private void ring(PcmCache.Pcm pcm, long deadline, int generation) {
+        AudioManager audioManager = (AudioManager)this.context.getSystemService(Context.AUDIO_SERVICE);
+        if ((audioManager == null) || (audioManager.requestAudioFocus(this, AudioManager.STREAM_ALARM, AudioManager.AUDIOFOCUS_GAIN_TRANSIENT) != AudioManager.AUDIOFOCUS_REQUEST_GRANTED)) {
+            this.fireOnBellSkipped();
+            return;
+        }
+
+        int sampleRate = pcm.getSampleRate();
+        int channelCount = pcm.getChannelCount();
+        int channelConfig = (channelCount == 1) ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        int bufferSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack track = null;
+        boolean playing = false;
+        boolean traced = Tracer.beginSection("BellScheduler.ring");
+        try {
+            track = new AudioTrack(AudioManager.STREAM_ALARM, sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+            if (track.getState() != AudioTrack.STATE_INITIALIZED) throw new IllegalStateException("Unable to initialize AudioTrack");
+            short[] silence = new short[CHUNK_FRAMES * channelCount];
+            short[] chunk = new short[CHUNK_FRAMES * channelCount];
+            long written = 0L;
+            track.play();
+            playing = true;
+            EnergyEstimator.getSessionEstimator().startAudio(SystemClock.elapsedRealtime());
+
+            // write silence up to the frame which will be played at the deadline, re-reading the
+            // audio clock on every chunk
+            while (true) {
+                if (this.isCancelled(generation)) return;
+
+                long target = track.getPlaybackHeadPosition() + (((deadline - SystemClock.elapsedRealtime()) * sampleRate) / 1000L);
+                if (target <= written) break;
+                int frames = (int)Math.min(target - written, CHUNK_FRAMES);
+                track.write(silence, 0, frames * channelCount);
+                written += frames;
+            }
+
+            // write the bell
+            long bellFrame = written;
+            long achieved = 0L;
+            ShortBuffer samples = pcm.getSamples().duplicate();
+            samples.rewind();
+            while (samples.hasRemaining()) {
+                int count = Math.min(chunk.length, samples.remaining());
+                samples.get(chunk, 0, count);
+                track.write(chunk, 0, count);
+                written += count / channelCount;
+
+                if (achieved == 0L) achieved = this.getPlayedTime(track, bellFrame, sampleRate);
+            }
+
+            // let the bell play out
+            while (track.getPlaybackHeadPosition() < written) {
+                if (achieved == 0L) achieved = this.getPlayedTime(track, bellFrame, sampleRate);
+                SystemClock.sleep(POLL_MS);
+            }
+
+            Log.d(TAG, String.format(Locale.US, "Bell target %d ms, achieved %d ms, offset %+d ms", deadline, achieved, achieved - deadline));
+        }
+        finally {
+            Tracer.endSection(traced);
+            if (playing) EnergyEstimator.getSessionEstimator().stopAudio(SystemClock.elapsedRealtime());
+            if (track != null) track.release();
+            audioManager.abandonAudioFocus(this);
+        }
+    }
+
+    /**
+     * Returns the time at which the given frame was played according to the audio clock, or 0 if
+     * it has not been played yet.
+     * @param track
+     * @param frame
+     * @param sampleRate
+     */
+    private long getPlayedTime(AudioTrack track, long frame, int sampleRate) {
+        long head = track.getPlaybackHeadPosition();
+        if (head < frame) return 0L;
+
+        return SystemClock.elapsedRealtime() - (((head - frame) * 1000L) / sampleRate);
+    }
+
+    /**
+     * Marks this scheduler as failed, dropping all pending bells.
+     */
+    private void fail() {
+        synchronized (this.lock) {
+            this.deadlines.clear();
+            this.failed = true;
+        }
+    }
+
+    /**
+     * Returns whether the bells have been cancelled since the given generation.
+     * @param generation
+     */
+    private boolean isCancelled(int generation) {
+        synchronized (this.lock) {
+            return (this.generation != generation);
+        }
+    }
+
+    /**
+     * Waits on the lock for the given time (0 waits indefinitely).  Must be holding the lock.
+     * @param time
+     */
+    private void waitForLock(long time) {
+        try {
+            this.lock.wait(time);
+        }
+        catch (InterruptedException exception) {
+            // re-check state
+        }
+    }
+
+    /**
+     * Invokes the OnBellSkipped method of the listener on the main thread.
+     */
+    private void fireOnBellSkipped() {
+        if (this.listener == null) return;
+
+        this.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onBellSkipped();
+            }
+        });
+    }
+
+    /**
+     * Interface for bell listeners.
+     */
+    public interface OnBellListener {
+        void onBellSkipped();
+    }
+}
@@ -0,0 +1,228 @@
+package org.twoflies.calm;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import junit.framework.Assert;
+
+import java.util.Locale;
+
+/**
+ * Custom view to display the remaining interval as mm:ss.  The ten digits and the colon are
+ * rendered once into a glyph atlas, and only the digit cells that change are redrawn, so updating
+ * the view never requires text shaping or a layout pass.  The displayed text is only formatted
+ * when accessibility services ask for it.
+ */
+public class CountdownView extends View {
+
+    private static final String GLYPHS = "0123456789:";
+    private static final int COLON_GLYPH = 10;
+    // Cells displayed: m m : s s
+    private static final int[] CELL_DIGITS = {-1, -1, COLON_GLYPH, -1, -1};
+    private static final int CELL_COUNT = CELL_DIGITS.length;
+
+    private Paint glyphPaint = null;
+    private Paint bitmapPaint = null;
+    private Bitmap glyphBitmap = null;
+    private Rect[] glyphBounds = null;
+    private int digitWidth = 0;
+    private int colonWidth = 0;
+    private int glyphHeight = 0;
+    //
+    private Rect[] cellBounds = null;
+    private int[] cellGlyphs = null;
+
+    public CountdownView(Context context, AttributeSet attributes) {
+        super(context, attributes);
+
+        // text color follows the theme's primary text color
+        TypedArray array = context.obtainStyledAttributes(new int[] {android.R.attr.textColorPrimary});
+        int color = array.getColor(0, Color.WHITE);
+        array.recycle();
+
+        this.glyphPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        this.glyphPaint.setColor(Color.WHITE);  // alpha only, colored by bitmapPaint
+        this.glyphPaint.setTextSize(this.getResources().getDimension(R.dimen.timer_text_size));
+
+        this.bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        this.bitmapPaint.setColor(color);
+
+        this.cellBounds = new Rect[CELL_COUNT];
+        this.cellGlyphs = new int[CELL_COUNT];
+        for (int index = 0; index < CELL_COUNT; index++) {
+            this.cellBounds[index] = new Rect();
+            this.cellGlyphs[index] = (CELL_DIGITS[index] >= 0) ? CELL_DIGITS[index] : 0;
+        }
+
+        this.renderGlyphs();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = (4 * this.digitWidth) + this.colonWidth + this.getPaddingLeft() + this.getPaddingRight();
+        int height = this.glyphHeight + this.getPaddingTop() + this.getPaddingBottom();
+
+        this.setMeasuredDimension(resolveSize(width, widthMeasureSpec), resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        this.calculateCellBounds(w, h);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        boolean traced = Tracer.beginSection("CountdownView.onDraw");
+        try {
+            super.onDraw(canvas);
+
+            for (int index = 0; index < CELL_COUNT; index++) {
+                canvas.drawBitmap(this.glyphBitmap, this.glyphBounds[this.cellGlyphs[index]], this.cellBounds[index], this.bitmapPaint);
+            }
+        }
+        finally {
+            Tracer.endSection(traced);
+        }
+    }
+
+    @Override
+    public void onPopulateAccessibilityEvent(AccessibilityEvent event) {
+        super.onPopulateAccessibilityEvent(event);
+
+        event.getText().add(this.getText());
+    }
+
+    @Override
+    public void onInitializeAccessibilityNodeInfo(AccessibilityNodeInfo info) {
+        super.onInitializeAccessibilityNodeInfo(info);
+
+        info.setText(this.getText());
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        // the atlas is re-rendered if the view is attached again
+        if (this.glyphBitmap != null) {
+            this.glyphBitmap.recycle();
+            this.glyphBitmap = null;
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        if (this.glyphBitmap == null) this.renderGlyphs();
+    }
+
+    /**
+     * Updates the displayed interval, invalidating only the digit cells that changed.
+     * @param remainingInterval
+     */
+    public void setRemainingInterval(long remainingInterval) {
+        Assert.assertTrue(remainingInterval >= 0L);
+
+        long minutes = Math.min(remainingInterval / (60 * 1000), 99L);
+        long seconds = (remainingInterval % (60 * 1000)) / 1000;
+
+        this.updateCell(0, (int)(minutes / 10));
+        this.updateCell(1, (int)(minutes % 10));
+        this.updateCell(3, (int)(seconds / 10));
+        this.updateCell(4, (int)(seconds % 10));
+    }
+
+    /**
+     * Returns the displayed interval as text (for accessibility services only, since it allocates).
+     */
+    public String getText() {
+        int minutes = (this.cellGlyphs[0] * 10) + this.cellGlyphs[1];
+        int seconds = (this.cellGlyphs[3] * 10) + this.cellGlyphs[4];
+
+        return String.format(Locale.getDefault(), this.getContext().getString(R.string.time_format), minutes, seconds);
+    }
+
+    /**
+     * Sets the glyph of the given cell, invalidating the cell if it changed.
+     * @param cell
+     * @param glyph
+     */
+    private void updateCell(int cell, int glyph) {
+        if (this.cellGlyphs[cell] == glyph) return;
+
+        this.cellGlyphs[cell] = glyph;
+        Tracer.increment(Tracer.COUNTER_INVALIDATIONS);
+        Rect bounds = this.cellBounds[cell];
+        this.invalidate(bounds.left, bounds.top, bounds.right, bounds.bottom);
+    }
+
+    /**
+     * Renders the digits and colon into a single alpha-only glyph bitmap, all digits sharing the
+     * width of the widest digit.
+     */
+    private void renderGlyphs() {
+        boolean traced = Tracer.beginSection("CountdownView.renderGlyphs");
+        try {
+            float[] widths = new float[GLYPHS.length()];
+            this.glyphPaint.getTextWidths(GLYPHS, widths);
+
+            float maxDigitWidth = 0.0f;
+            for (int index = 0; index < COLON_GLYPH; index++) {
+                maxDigitWidth = Math.max(maxDigitWidth, widths[index]);
+            }
+            this.digitWidth = (int)Math.ceil(maxDigitWidth);
+            this.colonWidth = (int)Math.ceil(widths[COLON_GLYPH]);
+
+            Paint.FontMetricsInt metrics = this.glyphPaint.getFontMetricsInt();
+            this.glyphHeight = metrics.bottom - metrics.top;
+
+            this.glyphBitmap = Bitmap.createBitmap((COLON_GLYPH * this.digitWidth) + this.colonWidth, this.glyphHeight, Bitmap.Config.ALPHA_8);
+            Canvas canvas = new Canvas(this.glyphBitmap);
+
+            this.glyphBounds = new Rect[GLYPHS.length()];
+            int left = 0;
+            for (int index = 0; index < GLYPHS.length(); index++) {
+                int width = (index == COLON_GLYPH) ? this.colonWidth : this.digitWidth;
+                this.glyphBounds[index] = new Rect(left, 0, left + width, this.glyphHeight);
+                // center each glyph within its cell
+                float x = left + ((width - widths[index]) / 2.0f);
+                canvas.drawText(GLYPHS, index, index + 1, x, -metrics.top, this.glyphPaint);
+                left += width;
+            }
+
+            Tracer.increment(Tracer.COUNTER_DECODES);
+        }
+        finally {
+            Tracer.endSection(traced);
+        }
+    }
+
+    /**
+     * Calculates the bounds of each cell, centered horizontally and vertically within the view.
+     * @param w
+     * @param h
+     */
+    private void calculateCellBounds(int w, int h) {
+        int contentWidth = (4 * this.digitWidth) + this.colonWidth;
+        int left = this.getPaddingLeft() + ((w - this.getPaddingLeft() - this.getPaddingRight() - contentWidth) / 2);
+        int top = this.getPaddingTop() + ((h - this.getPaddingTop() - this.getPaddingBottom() - this.glyphHeight) / 2);
+
+        for (int index = 0; index < CELL_COUNT; index++) {
+            int width = (CELL_DIGITS[index] == COLON_GLYPH) ? this.colonWidth : this.digitWidth;
+            this.cellBounds[index].set(left, top, left + width, top + this.glyphHeight);
+            left += width;
+        }
+    }
+}
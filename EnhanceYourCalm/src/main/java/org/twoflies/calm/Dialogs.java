@@ -13,7 +13,7 @@ import java.util.Locale;
  */
 public class Dialogs {
 
-    private static final long[] INTERVAL_VALUES = {5 * 60 * 1000, 15 * 60 * 1000, 20 * 60 * 1000, 30 * 60 * 1000, 45 * 60 * 1000, 60 * 60 * 1000};
+    static final long[] INTERVAL_VALUES = {5 * 60 * 1000, 15 * 60 * 1000, 20 * 60 * 1000, 30 * 60 * 1000, 45 * 60 * 1000, 60 * 60 * 1000};
     private static String[] INTERVAL_LABELS = null;  // {"5 minutes", "15 minutes", "20 minutes", "30 minutes", "45 minutes", "60 minutes"};
 
     /**
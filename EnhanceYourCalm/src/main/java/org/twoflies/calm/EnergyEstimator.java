@@ -0,0 +1,181 @@
+package org.twoflies.calm;
+
+/**
+ * Estimates the energy cost of a session from counts of wakeups, timer ticks and frames drawn, and
+ * from audio playback and screen-on time, weighted by a configurable CostModel.  Uses no Android
+ * classes, so it can be driven headlessly (see EnergyBenchmarkTest).
+ */
+public class EnergyEstimator {
+
+    // Estimator of the current session
+    private static final EnergyEstimator sessionEstimator = new EnergyEstimator();
+
+    private long wakeups = 0L;
+    private long ticks = 0L;
+    private long frames = 0L;
+    private long audioTime = 0L;
+    private long screenOnTime = 0L;
+    //
+    private int audioCount = 0;  // number of sounds currently playing
+    private long audioStartTime = 0L;
+    private boolean screenOn = false;
+    private long screenOnStartTime = 0L;
+
+    /**
+     * Returns the estimator of the current session.
+     */
+    public static EnergyEstimator getSessionEstimator() {
+        return sessionEstimator;
+    }
+
+    /**
+     * Resets all counts and times, for a new session.
+     * @param time the current time in milliseconds.
+     */
+    public synchronized void reset(long time) {
+        this.wakeups = this.ticks = this.frames = 0L;
+        this.audioTime = this.screenOnTime = 0L;
+        // sounds still playing and the screen still on are counted from now
+        if (this.audioCount > 0) this.audioStartTime = time;
+        if (this.screenOn) this.screenOnStartTime = time;
+    }
+
+    /**
+     * Records that the process was woken up.
+     */
+    public synchronized void recordWakeup() {
+        this.wakeups++;
+    }
+
+    /**
+     * Returns the number of wakeups recorded.
+     */
+    public synchronized long getWakeups() {
+        return this.wakeups;
+    }
+
+    /**
+     * Returns the number of timer ticks recorded.
+     */
+    public synchronized long getTicks() {
+        return this.ticks;
+    }
+
+    /**
+     * Returns the number of frames recorded.
+     */
+    public synchronized long getFrames() {
+        return this.frames;
+    }
+
+    /**
+     * Records a timer tick on the main thread.
+     */
+    public synchronized void recordTick() {
+        this.ticks++;
+    }
+
+    /**
+     * Records a frame drawn.
+     */
+    public synchronized void recordFrame() {
+        this.frames++;
+    }
+
+    /**
+     * Records that a sound started playing.  Overlapping sounds are counted once.
+     * @param time the current time in milliseconds.
+     */
+    public synchronized void startAudio(long time) {
+        if (this.audioCount++ == 0) this.audioStartTime = time;
+    }
+
+    /**
+     * Records that a sound stopped playing.
+     * @param time the current time in milliseconds.
+     */
+    public synchronized void stopAudio(long time) {
+        if (this.audioCount == 0) return;
+
+        if (--this.audioCount == 0) this.audioTime += time - this.audioStartTime;
+    }
+
+    /**
+     * Records that the screen is kept on.
+     * @param time the current time in milliseconds.
+     */
+    public synchronized void startScreenOn(long time) {
+        if (this.screenOn) return;
+
+        this.screenOn = true;
+        this.screenOnStartTime = time;
+    }
+
+    /**
+     * Records that the screen is no longer kept on.
+     * @param time the current time in milliseconds.
+     */
+    public synchronized void stopScreenOn(long time) {
+        if (!this.screenOn) return;
+
+        this.screenOn = false;
+        this.screenOnTime += time - this.screenOnStartTime;
+    }
+
+    /**
+     * Returns the estimated energy in millijoules, using the given cost model.
+     * @param model
+     * @param time the current time in milliseconds, for the audio and screen-on still in progress.
+     */
+    public synchronized double estimate(CostModel model, long time) {
+        long audioTime = this.audioTime + ((this.audioCount > 0) ? (time - this.audioStartTime) : 0L);
+        long screenOnTime = this.screenOnTime + (this.screenOn ? (time - this.screenOnStartTime) : 0L);
+
+        return (this.wakeups * model.wakeupEnergy)
+                + (this.ticks * model.tickEnergy)
+                + (this.frames * model.frameEnergy)
+                + ((audioTime / 1000.0) * model.audioPower)
+                + ((screenOnTime / 1000.0) * model.screenOnPower);
+    }
+
+    /**
+     * Returns a summary of the counts and times, for logging.
+     */
+    @Override
+    public synchronized String toString() {
+        return "wakeups=" + this.wakeups + " ticks=" + this.ticks + " frames=" + this.frames
+                + " audio=" + this.audioTime + "ms screenOn=" + this.screenOnTime + "ms";
+    }
+
+    /**
+     * Costs of each counted event (in millijoules) and of each second of audio and screen-on
+     * (in milliwatts).
+     */
+    public static class CostModel {
+
+        // Rough figures for a mid-range phone
+        public static final CostModel DEFAULT = new CostModel(15.0, 0.05, 1.5, 40.0, 300.0);
+
+        private double wakeupEnergy = 0.0;
+        private double tickEnergy = 0.0;
+        private double frameEnergy = 0.0;
+        private double audioPower = 0.0;
+        private double screenOnPower = 0.0;
+
+        /**
+         * Creates a cost model.
+         * @param wakeupEnergy energy per process wakeup (mJ).
+         * @param tickEnergy energy per timer tick on the main thread (mJ).
+         * @param frameEnergy energy per frame drawn (mJ).
+         * @param audioPower power while audio plays (mW).
+         * @param screenOnPower power while the screen is kept on (mW).
+         */
+        public CostModel(double wakeupEnergy, double tickEnergy, double frameEnergy, double audioPower, double screenOnPower) {
+            this.wakeupEnergy = wakeupEnergy;
+            this.tickEnergy = tickEnergy;
+            this.frameEnergy = frameEnergy;
+            this.audioPower = audioPower;
+            this.screenOnPower = screenOnPower;
+        }
+    }
+}
@@ -4,15 +4,16 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.media.AudioManager;
-import android.media.MediaPlayer;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.WindowManager;
-import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.Locale;
@@ -20,26 +21,38 @@ import java.util.Locale;
 /**
  * Main and only activity.
  */
-public class MainActivity extends Activity implements View.OnClickListener, View.OnLongClickListener, Timer.OnTimerListener, AudioManager.OnAudioFocusChangeListener, MediaPlayer.OnCompletionListener {
+public class MainActivity extends Activity implements View.OnClickListener, View.OnLongClickListener, Timer.OnTimerListener, BellScheduler.OnBellListener, TimerProgressView.OnDialListener {
+
+    private static final String TAG = "MainActivity";
 
     // Keys for Preferences and instance state.
     private static final String INTERVAL_PREFERENCE_KEY = "org.twoflies.calm.INTERVAL_PREFERENCE";
+    private static final String AMBIENCE_PREFERENCE_KEY = "org.twoflies.calm.AMBIENCE_PREFERENCE";
     private static final String STATE_TIMER_RUNNING_KEY = "timerRunning";
 
     private TimerProgressView progressView = null;
-    private TextView timerView = null;
+    private CountdownView timerView = null;
     //
     private Timer timer = null;
+    private AmbientPlayer ambientPlayer = null;
+    private BellScheduler bellScheduler = null;
+    // whether the running session was taken over from the widget
+    private boolean widgetSession = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+
+        // Enable trace sections for debuggable builds only
+        Tracer.setEnabled((this.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+
         this.setContentView(R.layout.activity_main);
 
         this.progressView = (TimerProgressView)this.findViewById(R.id.animationView);
         this.progressView.setOnClickListener(this);
+        this.progressView.setOnDialListener(this);
 
-        this.timerView = (TextView)this.findViewById(R.id.timerView);
+        this.timerView = (CountdownView)this.findViewById(R.id.timerView);
         this.timerView.setOnClickListener(this);
         this.timerView.setOnLongClickListener(this);
 
@@ -52,10 +65,20 @@ public class MainActivity extends Activity implements View.OnClickListener, View
         // Create timer
         this.timer = new Timer(Timer.DEFAULT_INTERVAL);
         this.timer.addOnTimerListener(this);
-        // and initialize with stored preference
+        // and initialize with stored preference (overridden by the shared state in onResume)
         long interval = this.getPreferences(MODE_PRIVATE).getLong(INTERVAL_PREFERENCE_KEY, Timer.DEFAULT_INTERVAL);
         this.initializeTimer(interval);
 
+        // Create bell scheduler, if supported (otherwise the alarm is played on elapse)
+        if (isPcmPlaybackSupported()) {
+            this.bellScheduler = new BellScheduler(this, R.raw.bowl, this);
+        }
+
+        // Create ambient player, if enabled
+        if (isPcmPlaybackSupported() && this.getPreferences(MODE_PRIVATE).getBoolean(AMBIENCE_PREFERENCE_KEY, false)) {
+            this.ambientPlayer = new AmbientPlayer(this, R.raw.drone);
+        }
+
         // initialize dialog resources
         Dialogs.initialize(this);
     }
@@ -88,17 +111,61 @@ public class MainActivity extends Activity implements View.OnClickListener, View
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        // pick up the checkpointed timer state, which may have been changed from the widget or
+        // survived the death of the process
+        TimerCheckpoint.restore(this, this.timer);
+        if (this.timer.isRunning()) {
+            if (TimerCheckpoint.isWidgetSession(this)) {
+                // take over from the widget's elapse alarm
+                TimerWidgetProvider.cancelElapseAlarm(this);
+                this.widgetSession = true;
+            }
+            // else a session of this activity which survived the death of the process
+            this.onTimerStarted(this.timer.getRemainingInterval(), this.timer.getDeadline());
+
+            // Make sure screen stays on
+            this.setKeepScreenOn(true);
+        }
+        this.updateProgressView(this.timer.getRemainingInterval());
+        this.updateTimerView(this.timer.getRemainingInterval());
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
 
-        // stop the timer so that it is in a consistent state on resume
-        this.stopTimer();
+        if (this.widgetSession && this.timer.isRunning()) {
+            // hand the session back to the widget, which keeps it running
+            this.handOverToWidget();
+        }
+        else {
+            // stop the timer so that it is in a consistent state on resume
+            this.stopTimer();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (this.bellScheduler != null) {
+            this.bellScheduler.release();
+            this.bellScheduler = null;
+        }
+        if (this.ambientPlayer != null) {
+            this.ambientPlayer.release();
+            this.ambientPlayer = null;
+        }
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         this.getMenuInflater().inflate(R.menu.main, menu);
+        menu.findItem(R.id.action_ambience).setVisible(isPcmPlaybackSupported()).setChecked(this.ambientPlayer != null);
 
         return super.onCreateOptionsMenu(menu);
     }
@@ -109,6 +176,10 @@ public class MainActivity extends Activity implements View.OnClickListener, View
             case R.id.action_reset:
                 this.queryResetTimer();
                 return true;
+            case R.id.action_ambience:
+                item.setChecked(!item.isChecked());
+                this.updateAmbience(item.isChecked());
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -150,8 +221,29 @@ public class MainActivity extends Activity implements View.OnClickListener, View
 
     /* Timer.OnTimerListener */
 
+    @Override
+    public void onTimerStarted(long remainingInterval, long deadline) {
+        // schedule the bell against the deadline, which unlike the remaining interval does not
+        // depend on how late the event was delivered
+        if (this.bellScheduler != null) {
+            this.bellScheduler.cancel();
+            this.bellScheduler.schedule(deadline);
+        }
+        if (this.ambientPlayer != null) this.ambientPlayer.play();
+    }
+
+    @Override
+    public void onTimerStopped(long remainingInterval) {
+        // the bell is already playing if the timer stopped because it elapsed
+        if ((this.bellScheduler != null) && (remainingInterval > 0L)) this.bellScheduler.cancel();
+        if (this.ambientPlayer != null) this.ambientPlayer.pause();
+    }
+
     @Override
     public void onTimerTick(long remainingInterval) {
+        // ignore ticks delivered after the timer was stopped (and possibly reset)
+        if (!this.timer.isRunning()) return;
+
         // update views
         this.updateProgressView(remainingInterval);
         this.updateTimerView(remainingInterval);
@@ -159,23 +251,48 @@ public class MainActivity extends Activity implements View.OnClickListener, View
 
     @Override
     public void onTimerElapsed() {
-        this.playAlarm();
+        // the bell scheduler plays the alarm itself, unless it failed
+        if ((this.bellScheduler == null) || this.bellScheduler.isFailed()) this.playAlarm();
         this.updateProgressView(this.timer.getRemainingInterval());  // should be 0
-        // no need to update Timer view
+        // the last tick arrives after the timer stopped, and so is ignored
+        this.updateTimerView(0L);
+
+        this.saveTimerState();
+        showEnergyEstimate(this);
+        if (Tracer.isEnabled()) Log.d(TAG, "Trace counters: " + Tracer.dumpCounters());
     }
 
-    /* AudioManager.OnAudioFocusChangeListener */
+    /* BellScheduler.OnBellListener */
 
     @Override
-    public void onAudioFocusChange(int i) {
-        // no-op
+    public void onBellSkipped() {
+        // at least "toast" ;-)
+        Toast.makeText(this, getString(R.string.toast_alarm_expired), Toast.LENGTH_LONG).show();
     }
 
-    /* MediaPlayer.OnCompletionListener */
+    /* TimerProgressView.OnDialListener */
+
+    @Override
+    public void onDialChanged(long interval) {
+        // live preview
+        this.updateTimerView(interval);
+    }
 
     @Override
-    public void onCompletion(MediaPlayer player) {
-        player.release();
+    public void onDialReleased(long interval) {
+        if (interval == this.timer.getInterval()) {
+            // unchanged, so keep the remaining interval of a paused session
+            this.onDialCancelled();
+            return;
+        }
+
+        this.updateInterval(interval);
+    }
+
+    @Override
+    public void onDialCancelled() {
+        this.updateProgressView(this.timer.getRemainingInterval());
+        this.updateTimerView(this.timer.getRemainingInterval());
     }
 
     /**
@@ -200,29 +317,40 @@ public class MainActivity extends Activity implements View.OnClickListener, View
     private void updateProgressView(long remainingInterval) {
         assert remainingInterval >= 0L;
 
-        // Calculate percentage
-        float percentage = (this.timer.getInterval() - remainingInterval) / (float)this.timer.getInterval();
+        boolean traced = Tracer.beginSection("MainActivity.updateProgressView");
+        try {
+            // Calculate percentage
+            float percentage = (this.timer.getInterval() - remainingInterval) / (float)this.timer.getInterval();
 
-        // and message based on timer state
-        String message;
-        if (this.timer.isRunning()) message = this.getString(R.string.message_press_to_stop);
-        else if (this.timer.isElapsed()) message = this.getString(R.string.message_press_to_reset);
-        else message = this.getString(R.string.message_press_to_start);
+            // and message based on timer state
+            String message;
+            if (this.timer.isRunning()) message = this.getString(R.string.message_press_to_stop);
+            else if (this.timer.isElapsed()) message = this.getString(R.string.message_press_to_reset);
+            else message = this.getString(R.string.message_press_to_start);
 
-        this.progressView.updateProgress(percentage, message);
+            this.progressView.updateProgress(percentage, message);
+            // the interval can be chosen with the dial unless the timer is running
+            this.progressView.setDialEnabled(!this.timer.isRunning());
+        }
+        finally {
+            Tracer.endSection(traced);
+        }
     }
 
     /**
-     * Updates the Timer(Text)View using the given remaining interval.
+     * Updates the Timer(Countdown)View using the given remaining interval.
      * @param remainingInterval
      */
     private void updateTimerView(long remainingInterval) {
         assert remainingInterval >= 0L;
 
-        long minutes = remainingInterval / (60 * 1000);
-        long seconds = (remainingInterval % (60 * 1000)) / 1000;
-
-        this.timerView.setText(String.format(Locale.getDefault(), getString(R.string.time_format), minutes, seconds));
+        boolean traced = Tracer.beginSection("MainActivity.updateTimerView");
+        try {
+            this.timerView.setRemainingInterval(remainingInterval);
+        }
+        finally {
+            Tracer.endSection(traced);
+        }
     }
 
     /**
@@ -245,10 +373,11 @@ public class MainActivity extends Activity implements View.OnClickListener, View
      */
     private void startTimer() {
         this.timer.start();
+        this.saveTimerState();
         // Progress and Timer views will update via Tick
 
         // Make sure screen stays on
-        this.getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        this.setKeepScreenOn(true);
     }
 
     /**
@@ -256,12 +385,43 @@ public class MainActivity extends Activity implements View.OnClickListener, View
      */
     private void stopTimer() {
         this.timer.stop();
-        // update views
+        this.widgetSession = false;
+        this.saveTimerState();
+        // update views, since ticks still in flight are ignored
         this.updateProgressView(this.timer.getRemainingInterval());
-        // no need to update Timer view
+        this.updateTimerView(this.timer.getRemainingInterval());
+
+        // Allow screen to shut off
+        this.setKeepScreenOn(false);
+    }
+
+    /**
+     * Hands the running session back to the widget: the checkpoint keeps it running and the
+     * widget's elapse alarm plays the alarm, so the timer here only stops ticking.
+     */
+    private void handOverToWidget() {
+        this.saveTimerState();
+        TimerWidgetProvider.setElapseAlarm(this, this.timer.getDeadline());
+        this.timer.stop();  // not saved, so the session keeps running
+        this.widgetSession = false;
 
         // Allow screen to shut off
-        this.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        this.setKeepScreenOn(false);
+    }
+
+    /**
+     * Keeps the screen on, or allows it to shut off, recording it for the energy estimate.
+     * @param keepScreenOn
+     */
+    private void setKeepScreenOn(boolean keepScreenOn) {
+        if (keepScreenOn) {
+            this.getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+            EnergyEstimator.getSessionEstimator().startScreenOn(SystemClock.elapsedRealtime());
+        }
+        else {
+            this.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+            EnergyEstimator.getSessionEstimator().stopScreenOn(SystemClock.elapsedRealtime());
+        }
     }
 
     /**
@@ -269,6 +429,7 @@ public class MainActivity extends Activity implements View.OnClickListener, View
      */
     private void resetTimer() {
         this.timer.reset();
+        this.saveTimerState();
         // update views
         this.updateProgressView(this.timer.getInterval());
         this.updateTimerView(this.timer.getInterval());
@@ -296,22 +457,8 @@ public class MainActivity extends Activity implements View.OnClickListener, View
      * Plays the "alarm".
      */
     private void playAlarm() {
-        AudioManager audioManager = (AudioManager)this.getSystemService(Context.AUDIO_SERVICE);
-        if (audioManager == null) return;
-
-        // Request "transient" audio focus
-        if (audioManager.requestAudioFocus(this, AudioManager.STREAM_ALARM, AudioManager.AUDIOFOCUS_GAIN_TRANSIENT) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
-            MediaPlayer player = MediaPlayer.create(this, R.raw.bowl);
-            player.setOnCompletionListener(this);
-            player.start();
-            // will be released in OnCompletion
-
-            audioManager.abandonAudioFocus(this);
-        }
-        else  // at least "toast" ;-)
-        {
-            Toast.makeText(this, getString(R.string.toast_alarm_expired), Toast.LENGTH_LONG).show();
-        }
+        // shared with the widget, see AlarmService
+        AlarmService.play(this);
     }
 
     /**
@@ -335,8 +482,55 @@ public class MainActivity extends Activity implements View.OnClickListener, View
 
         SharedPreferences.Editor editor = this.getPreferences(MODE_PRIVATE).edit();
         editor.putLong(INTERVAL_PREFERENCE_KEY, interval);
-        editor.commit();
+        editor.apply();  // written in the background
 
         this.initializeTimer(interval);
+        this.saveTimerState();
+    }
+
+    /**
+     * Shows the estimated energy cost of the session which just elapsed, also for the widgets.
+     * @param context
+     */
+    static void showEnergyEstimate(Context context) {
+        EnergyEstimator estimator = EnergyEstimator.getSessionEstimator();
+        double estimate = estimator.estimate(EnergyEstimator.CostModel.DEFAULT, SystemClock.elapsedRealtime());
+        Log.d(TAG, "Session energy " + estimate + " mJ: " + estimator);
+
+        Toast.makeText(context, String.format(Locale.getDefault(), context.getString(R.string.toast_energy_estimate), estimate / 1000.0), Toast.LENGTH_LONG).show();
+    }
+
+    /**
+     * Checkpoints the timer state, owned by the widgets if it is a widget session, and updates the
+     * widgets from it.
+     */
+    private void saveTimerState() {
+        TimerWidgetProvider.update(this, this.timer, this.widgetSession);
+    }
+
+    /**
+     * Returns whether PCM playback is supported (PcmCache decodes using MediaCodec).
+     */
+    private static boolean isPcmPlaybackSupported() {
+        return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN);
+    }
+
+    /**
+     * Enables or disables the ambient sound and stores it as the current preference.
+     * @param enabled
+     */
+    private void updateAmbience(boolean enabled) {
+        SharedPreferences.Editor editor = this.getPreferences(MODE_PRIVATE).edit();
+        editor.putBoolean(AMBIENCE_PREFERENCE_KEY, enabled);
+        editor.commit();
+
+        if (enabled && (this.ambientPlayer == null)) {
+            this.ambientPlayer = new AmbientPlayer(this, R.raw.drone);
+            if (this.timer.isRunning()) this.ambientPlayer.play();
+        }
+        else if (!enabled && (this.ambientPlayer != null)) {
+            this.ambientPlayer.release();
+            this.ambientPlayer = null;
+        }
     }
 }
@@ -0,0 +1,278 @@
+package org.twoflies.calm;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import junit.framework.Assert;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.regex.Pattern;
+
+/**
+ * Utility class for sound resources decoded once into PCM files in the cache directory, and
+ * memory-mapped for playback.
+ */
+public class PcmCache {
+
+    // Header of a cached PCM file: sample rate and channel count
+    private static final int HEADER_SIZE = 8;
+    // Timeout for MediaCodec buffer dequeues
+    private static final long CODEC_TIMEOUT_US = 10000L;
+
+    /**
+     * Maps the decoded PCM of the given raw sound resource, decoding it first if it has not been
+     * cached yet.  Must not be called on the main thread.
+     * @param context
+     * @param resourceId
+     */
+    public static Pcm map(Context context, int resourceId) throws IOException {
+        Assert.assertNotNull(context);
+
+        File pcmFile = getPcmFile(context, resourceId);
+
+        RandomAccessFile file = new RandomAccessFile(pcmFile, "r");
+        try {
+            int sampleRate = file.readInt();
+            int channelCount = file.readInt();
+            FileChannel channel = file.getChannel();
+            // the mapping stays valid after the file is closed
+            ShortBuffer samples = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, channel.size() - HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+
+            return new Pcm(sampleRate, channelCount, samples);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the cached PCM file for the given sound resource, decoding it first if necessary.
+     * The file is keyed by the resource's entry name and the time the app was last updated, since
+     * resource ids are reassigned between builds and the cache survives updates.
+     * @param context
+     * @param resourceId
+     */
+    private static File getPcmFile(Context context, int resourceId) throws IOException {
+        String prefix = "pcm_" + context.getResources().getResourceEntryName(resourceId) + "_";
+        File cacheDir = context.getCacheDir();
+        File pcmFile = new File(cacheDir, prefix + getLastUpdateTime(context) + ".pcm");
+        if (pcmFile.exists()) return pcmFile;
+
+        // decode into a uniquely named temporary file which is then renamed, so a partial file is
+        // never used, even by another instance decoding the same resource at the same time
+        File tempFile = File.createTempFile(prefix, ".tmp", cacheDir);
+        boolean traced = Tracer.beginSection("PcmCache.decode");
+        try {
+            Tracer.increment(Tracer.COUNTER_DECODES);
+            decode(context, resourceId, tempFile);
+            if (!tempFile.renameTo(pcmFile)) throw new IOException("Unable to rename " + tempFile);
+        }
+        finally {
+            Tracer.endSection(traced);
+            tempFile.delete();  // no-op once renamed
+        }
+
+        // remove the resource's files cached by previous versions
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().matches(Pattern.quote(prefix) + "\\d+\\.pcm") && !file.equals(pcmFile)) file.delete();
+            }
+        }
+
+        return pcmFile;
+    }
+
+    /**
+     * Returns the time at which the app was last installed or updated.
+     * @param context
+     */
+    private static long getLastUpdateTime(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        }
+        catch (PackageManager.NameNotFoundException exception) {
+            // cannot happen for the app's own package
+            return 0L;
+        }
+    }
+
+    /**
+     * Decodes the given sound resource into the given file as a header followed by 16 bit PCM.
+     * @param context
+     * @param resourceId
+     * @param pcmFile
+     */
+    private static void decode(Context context, int resourceId, File pcmFile) throws IOException {
+        AssetFileDescriptor descriptor = null;
+        File sourceFile = null;
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        RandomAccessFile file = new RandomAccessFile(pcmFile, "rw");
+        try {
+            try {
+                descriptor = context.getResources().openRawResourceFd(resourceId);
+            }
+            catch (Resources.NotFoundException exception) {
+                // compressed in the APK (aapt compresses .flac), so cannot be opened directly
+            }
+            if (descriptor != null) {
+                extractor.setDataSource(descriptor.getFileDescriptor(), descriptor.getStartOffset(), descriptor.getLength());
+            }
+            else {
+                sourceFile = File.createTempFile("src_", ".tmp", context.getCacheDir());
+                copy(context, resourceId, sourceFile);
+                extractor.setDataSource(sourceFile.getPath());
+            }
+            extractor.selectTrack(0);
+            MediaFormat format = extractor.getTrackFormat(0);
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            ByteBuffer[] inputBuffers = codec.getInputBuffers();
+            ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+            file.setLength(0L);
+            file.seek(HEADER_SIZE);
+            FileChannel channel = file.getChannel();
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (!inputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        int size = extractor.readSampleData(inputBuffers[inputIndex], 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        }
+                        else {
+                            codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+                if (outputIndex >= 0) {
+                    ByteBuffer buffer = outputBuffers[outputIndex];
+                    buffer.position(info.offset);
+                    buffer.limit(info.offset + info.size);
+                    channel.write(buffer);
+                    codec.releaseOutputBuffer(outputIndex, false);
+                    outputDone = ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0);
+                }
+                else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = codec.getOutputBuffers();
+                }
+                else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // the decoded format is authoritative
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                }
+            }
+
+            file.seek(0L);
+            file.writeInt(sampleRate);
+            file.writeInt(channelCount);
+        }
+        finally {
+            if (codec != null) {
+                codec.stop();
+                codec.release();
+            }
+            extractor.release();
+            if (descriptor != null) descriptor.close();
+            if (sourceFile != null) sourceFile.delete();
+            file.close();
+        }
+    }
+
+    /**
+     * Copies the given raw resource to the given file.
+     * @param context
+     * @param resourceId
+     * @param destinationFile
+     */
+    private static void copy(Context context, int resourceId, File destinationFile) throws IOException {
+        InputStream input = context.getResources().openRawResource(resourceId);
+        try {
+            FileOutputStream output = new FileOutputStream(destinationFile);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = input.read(buffer)) >= 0) {
+                    output.write(buffer, 0, count);
+                }
+            }
+            finally {
+                output.close();
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Memory-mapped, interleaved 16 bit PCM samples and their format.
+     */
+    public static class Pcm {
+
+        private int sampleRate = 0;
+        private int channelCount = 0;
+        private ShortBuffer samples = null;
+
+        private Pcm(int sampleRate, int channelCount, ShortBuffer samples) {
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.samples = samples;
+        }
+
+        /**
+         * Returns the sample rate in Hz.
+         */
+        public int getSampleRate() {
+            return this.sampleRate;
+        }
+
+        /**
+         * Returns the number of (interleaved) channels.
+         */
+        public int getChannelCount() {
+            return this.channelCount;
+        }
+
+        /**
+         * Returns the number of frames (samples per channel).
+         */
+        public int getFrameCount() {
+            return this.samples.capacity() / this.channelCount;
+        }
+
+        /**
+         * Returns the interleaved samples.
+         */
+        public ShortBuffer getSamples() {
+            return this.samples;
+        }
+    }
+}
@@ -2,14 +2,15 @@ package org.twoflies.calm;
 
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 
 import junit.framework.Assert;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * Encapsulates timer functionality, including registering and notifying timer listeners.
+ * Encapsulates timer functionality, including publishing timer events to listeners.
  */
 public class Timer {
 
@@ -20,46 +21,95 @@ public class Timer {
     private static final String STATE_ADJUSTED_INTERVAL_KEY = "adjustedInterval";
     private static final String STATE_REMAINING_INTERVAL_KEY = "remainingInterval";
 
-    // Delay for timer ticks
-    private static final int TIMER_DELAY_MS = 200;
+    // Delay for timer ticks (package visible for EnergyBenchmarkTest)
+    static final int TIMER_DELAY_MS = 200;
 
     private long interval = 0L;
     //
     private long adjustedInterval = 0L;
     private long remainingInterval = 0L;
     private long startTime = 0L;
-    private Handler handler = new Handler();
+    private boolean ticking = true;
+    private Clock clock = null;
     // Runnable for timer ticks
     private Runnable runnable = new Runnable() {
         @Override
         public void run() {
             if (timerTick()) {
-                handler.postDelayed(this, TIMER_DELAY_MS);
+                clock.postDelayed(this, TIMER_DELAY_MS);
             }
         }
     };
-    private List<OnTimerListener> listeners = new ArrayList<OnTimerListener>();
+    private TimerEventStream eventStream = null;
+    private Map<OnTimerListener, TimerEventStream.Subscription> listenerSubscriptions = new HashMap<OnTimerListener, TimerEventStream.Subscription>();
 
     /**
      * Creates a timer with the given interval
      * @param interval
      */
     public Timer(long interval) {
+        this(interval, true);
+    }
+
+    /**
+     * Creates a timer with the given interval, which only ticks (and publishes tick and elapse
+     * events) if ticking is true.  Non-ticking timers are used to manipulate the shared
+     * state without keeping the process busy.
+     * @param interval
+     * @param ticking
+     */
+    public Timer(long interval, boolean ticking) {
+        this(interval, ticking, new HandlerClock());
+    }
+
+    /**
+     * Creates a timer with the given interval which runs on the given clock (package visible for
+     * EnergyBenchmarkTest).
+     * @param interval
+     * @param ticking
+     * @param clock
+     */
+    Timer(long interval, boolean ticking, Clock clock) {
         Assert.assertTrue(interval > 0L);
+        Assert.assertNotNull(clock);
 
+        this.ticking = ticking;
+        this.clock = clock;
         this.setInterval(interval);
     }
 
     /* OnTimerListener */
 
     /**
-     * Adds the given OnTimerListener.
+     * Adds the given OnTimerListener, subscribing it to the event stream on the main thread with
+     * ticks coalesced to the latest.
      * @param listener
      */
-    public void addOnTimerListener(OnTimerListener listener) {
+    public void addOnTimerListener(final OnTimerListener listener) {
         Assert.assertNotNull(listener);
 
-        if (!this.listeners.contains(listener)) this.listeners.add(listener);
+        if (this.listenerSubscriptions.containsKey(listener)) return;
+
+        TimerEventStream.Subscription subscription = this.getEventStream().subscribe(new TimerEventStream.OnTimerEventListener() {
+            @Override
+            public void onTimerEvent(TimerEventStream.Event event) {
+                switch (event.getType()) {
+                    case TimerEventStream.Event.TYPE_STARTED:
+                        listener.onTimerStarted(event.getRemainingInterval(), event.getDeadline());
+                        break;
+                    case TimerEventStream.Event.TYPE_STOPPED:
+                        listener.onTimerStopped(event.getRemainingInterval());
+                        break;
+                    case TimerEventStream.Event.TYPE_TICK:
+                        listener.onTimerTick(event.getRemainingInterval());
+                        break;
+                    case TimerEventStream.Event.TYPE_ELAPSED:
+                        listener.onTimerElapsed();
+                        break;
+                }
+            }
+        }, null, TimerEventStream.COALESCE_LATEST_ONLY, TimerEventStream.DEFAULT_CAPACITY);
+        this.listenerSubscriptions.put(listener, subscription);
     }
 
     /**
@@ -69,28 +119,27 @@ public class Timer {
     public void removeOnTimerListener(OnTimerListener listener) {
         Assert.assertNotNull(listener);
 
-        this.listeners.remove(listener);
+        TimerEventStream.Subscription subscription = this.listenerSubscriptions.remove(listener);
+        if (subscription != null) this.getEventStream().unsubscribe(subscription);
     }
 
     /**
-     * Invokes the OnTimerTick method of all registered OnTimerListeners.
-     * @param remainingInterval
+     * Returns the stream of this timer's events, creating it if necessary.
      */
-    protected void invokeOnTimerTick(long remainingInterval) {
-        assert remainingInterval >= 0L;
+    public TimerEventStream getEventStream() {
+        if (this.eventStream == null) this.eventStream = new TimerEventStream();
 
-        for (OnTimerListener listener : this.listeners) {
-            listener.onTimerTick(remainingInterval);
-        }
+        return this.eventStream;
     }
 
     /**
-     * Invokes the OnTimerElapsed method of all registered OnTimerListeners.
+     * Publishes an event of the given type to the event stream, if there is one.
+     * @param type one of the TimerEventStream.Event.TYPE_ constants.
      */
-    protected void fireOnTimerElapsed() {
-        for (OnTimerListener listener : this.listeners) {
-            listener.onTimerElapsed();
-        }
+    protected void publishEvent(int type) {
+        if (this.eventStream == null) return;
+
+        this.eventStream.publish(new TimerEventStream.Event(type, this.remainingInterval, this.isRunning() ? this.getDeadline() : 0L));
     }
 
     /* Public Accessors */
@@ -121,6 +170,15 @@ public class Timer {
         return this.remainingInterval;
     }
 
+    /**
+     * Returns the (SystemClock.elapsedRealtime) time at which this timer elapses, if it is running.
+     */
+    public long getDeadline() {
+        Assert.assertTrue(this.isRunning());
+
+        return this.startTime + this.adjustedInterval;
+    }
+
     /**
      * Returns whether this timer is currently running.
      */
@@ -136,13 +194,17 @@ public class Timer {
     }
 
     /**
-     * Starts this timer if it is not already running.
+     * Starts this timer if it is not already running.  Starting from the full interval starts a
+     * new session, resetting the session's energy estimate.
      */
     public void start() {
         if (this.isRunning()) return;
 
-        this.startTime = System.currentTimeMillis();
-        this.handler.postDelayed(this.runnable, TIMER_DELAY_MS);
+        this.startTime = this.clock.elapsedRealtime();
+        if (this.remainingInterval == this.interval) EnergyEstimator.getSessionEstimator().reset(this.startTime);
+        if (this.ticking) this.clock.postDelayed(this.runnable, TIMER_DELAY_MS);
+
+        this.publishEvent(TimerEventStream.Event.TYPE_STARTED);
     }
 
     /**
@@ -151,10 +213,12 @@ public class Timer {
     public void stop() {
         if (!this.isRunning()) return;
 
-        this.handler.removeCallbacks(this.runnable);
+        this.clock.removeCallbacks(this.runnable);
         // store the remaining interval
         this.adjustedInterval = this.remainingInterval;
         this.startTime = 0L;
+
+        this.publishEvent(TimerEventStream.Event.TYPE_STOPPED);
     }
 
     /**
@@ -163,7 +227,7 @@ public class Timer {
     public void reset() {
         if (this.isRunning()) return;
 
-        this.handler.removeCallbacks(this.runnable);
+        this.clock.removeCallbacks(this.runnable);
         this.remainingInterval = this.adjustedInterval = this.interval;
         this.startTime = 0L;
     }
@@ -192,28 +256,98 @@ public class Timer {
         this.remainingInterval = instanceState.getLong(STATE_REMAINING_INTERVAL_KEY, this.interval);
     }
 
+    /**
+     * Restores the state of this timer, as saved by TimerCheckpoint.  A running timer continues
+     * ticking (without publishing a start event), and one which elapsed in the meantime is
+     * restored as elapsed (without publishing an elapse event).
+     * @param interval an interval > 0
+     * @param remainingInterval the remaining interval, if not running.
+     * @param deadline the deadline (see getDeadline) if running, 0 otherwise.
+     */
+    public void restoreState(long interval, long remainingInterval, long deadline) {
+        Assert.assertTrue(interval > 0L);
+        Assert.assertTrue((remainingInterval >= 0L) && (remainingInterval <= interval));
+
+        this.clock.removeCallbacks(this.runnable);
+        this.interval = interval;
+        this.startTime = 0L;
+
+        if (deadline > 0L) {
+            remainingInterval = Math.max(deadline - this.clock.elapsedRealtime(), 0L);
+            if (remainingInterval > 0L) {
+                this.startTime = this.clock.elapsedRealtime();
+                if (this.ticking) this.clock.postDelayed(this.runnable, TIMER_DELAY_MS);
+            }
+        }
+        this.adjustedInterval = this.remainingInterval = remainingInterval;
+    }
+
     /**
      * "Callback" for a timer tick.
      * @return true to register for the next click, false to stop.
      */
     private boolean timerTick() {
-        this.remainingInterval = Math.max(this.adjustedInterval - (System.currentTimeMillis() - this.startTime), 0L);
+        boolean traced = Tracer.beginSection("Timer.timerTick");
+        try {
+            Tracer.increment(Tracer.COUNTER_TICKS);
+            EnergyEstimator.getSessionEstimator().recordTick();
+
+            this.remainingInterval = Math.max(this.adjustedInterval - (this.clock.elapsedRealtime() - this.startTime), 0L);
 
-        this.invokeOnTimerTick(this.remainingInterval);
+            this.publishEvent(TimerEventStream.Event.TYPE_TICK);
 
-        // if the timer has elapsed, stop it and trigger OnTimerElapsed
-        if (this.isElapsed()) {
-            this.stop();
-            this.fireOnTimerElapsed();
+            // if the timer has elapsed, stop it and publish the elapse
+            if (this.isElapsed()) {
+                this.stop();
+                this.publishEvent(TimerEventStream.Event.TYPE_ELAPSED);
+            }
+
+            return !this.isElapsed();
         }
+        finally {
+            Tracer.endSection(traced);
+        }
+    }
 
-        return !this.isElapsed();
+    /**
+     * Source of time and delayed execution for timers, replaced by EnergyBenchmarkTest to run a
+     * session in virtual time.
+     */
+    interface Clock {
+        long elapsedRealtime();
+        void postDelayed(Runnable runnable, long delay);
+        void removeCallbacks(Runnable runnable);
+    }
+
+    /**
+     * Clock of SystemClock.elapsedRealtime, running on the Handler of the creating thread.
+     */
+    private static class HandlerClock implements Clock {
+
+        private Handler handler = new Handler();
+
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delay) {
+            this.handler.postDelayed(runnable, delay);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            this.handler.removeCallbacks(runnable);
+        }
     }
 
     /**
      * Interface for timer listeners.
      */
     public interface OnTimerListener {
+        void onTimerStarted(long remainingInterval, long deadline);
+        void onTimerStopped(long remainingInterval);
         void onTimerTick(long remainingInterval);
         void onTimerElapsed();
     }
@@ -0,0 +1,283 @@
+package org.twoflies.calm;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+/**
+ * Utility class for a tiny checkpoint of the timer state, shared by the activity and the widget
+ * and surviving process death.  The checkpoint holds the deadline on the monotonic
+ * (SystemClock.elapsedRealtime) timeline together with the identity of the boot it belongs to, so
+ * a reboot is detected on restore, and whether a running timer is a widget session (started from
+ * or handed back to the widgets, whose elapse alarm ends it).  Checkpoints are written atomically (write, sync, rename) on a
+ * background thread, which also stamps them with the boot id, and memory-mapped when read.
+ */
+public class TimerCheckpoint {
+
+    private static final String TAG = "TimerCheckpoint";
+
+    private static final String FILE_NAME = "timer.checkpoint";
+    private static final String BOOT_ID_PATH = "/proc/sys/kernel/random/boot_id";
+
+    // Layout: version, flags, interval, remaining interval, deadline, wall clock deadline, boot id
+    private static final int VERSION = 1;
+    private static final int FLAG_RUNNING = 0x1;
+    private static final int FLAG_WIDGET = 0x2;
+    private static final int SIZE = (2 * 4) + (6 * 8);
+    private static final int BOOT_ID_OFFSET = SIZE - (2 * 8);
+
+    // Checkpoint last saved or restored by this process, if any, and whether it was read from
+    // storage (rather than saved by this process, and so belonging to the current boot)
+    private static byte[] latest = null;
+    private static boolean latestRead = false;
+    // Boot id, read once (under its own lock, so saving never waits for it)
+    private static final Object bootIdLock = new Object();
+    private static UUID bootId = null;
+    // Background writer
+    private static HandlerThread writerThread = null;
+    private static Handler writerHandler = null;
+
+    /**
+     * Saves the state of the given timer.  The state is visible to restore immediately, and is
+     * written to storage on a background thread.
+     * @param context
+     * @param timer
+     * @param widgetSession whether the timer, if running, is owned by the widgets.
+     */
+    public static void save(Context context, Timer timer, boolean widgetSession) {
+        Assert.assertNotNull(context);
+        Assert.assertNotNull(timer);
+
+        final File file = getFile(context);
+        final byte[] checkpoint = encode(timer, widgetSession);
+        synchronized (TimerCheckpoint.class) {
+            latest = checkpoint;
+            latestRead = false;
+            if (writerThread == null) {
+                writerThread = new HandlerThread(TAG);
+                writerThread.start();
+                writerHandler = new Handler(writerThread.getLooper());
+            }
+        }
+
+        // only the latest checkpoint needs writing
+        writerHandler.removeCallbacksAndMessages(null);
+        writerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                write(file, checkpoint);
+            }
+        });
+    }
+
+    /**
+     * Restores the given timer from the checkpoint, if there is one.  If the device was rebooted
+     * since a running timer was saved, the timer is restored as stopped with the interval
+     * remaining until its wall clock deadline.
+     * @param context
+     * @param timer
+     * @return true if the timer was restored, false if there is no (valid) checkpoint.
+     */
+    public static boolean restore(Context context, Timer timer) {
+        Assert.assertNotNull(context);
+        Assert.assertNotNull(timer);
+
+        boolean traced = Tracer.beginSection("TimerCheckpoint.restore");
+        try {
+            byte[] checkpoint;
+            boolean read;
+            synchronized (TimerCheckpoint.class) {
+                checkpoint = getLatest(context);
+                read = latestRead;
+            }
+            if (checkpoint == null) return false;
+
+            ByteBuffer buffer = ByteBuffer.wrap(checkpoint);
+            if (buffer.getInt() != VERSION) return false;
+            boolean running = ((buffer.getInt() & FLAG_RUNNING) != 0);
+            long interval = buffer.getLong();
+            long remainingInterval = buffer.getLong();
+            long deadline = buffer.getLong();
+            long wallDeadline = buffer.getLong();
+            UUID savedBootId = new UUID(buffer.getLong(), buffer.getLong());
+
+            if ((interval <= 0L) || (remainingInterval < 0L) || (remainingInterval > interval)) return false;
+
+            // only a checkpoint from storage can belong to a previous boot (and reading the boot id
+            // once per process is then on a par with reading the checkpoint)
+            if (running && read && !savedBootId.equals(getBootId())) {
+                // the monotonic deadline is meaningless after a reboot
+                remainingInterval = Math.min(Math.max(wallDeadline - System.currentTimeMillis(), 0L), interval);
+                Log.i(TAG, "Reboot detected, restoring stopped timer with " + remainingInterval + " ms remaining");
+                running = false;
+            }
+
+            timer.restoreState(interval, remainingInterval, running ? deadline : 0L);
+            return true;
+        }
+        finally {
+            Tracer.endSection(traced);
+        }
+    }
+
+    /**
+     * Returns whether the checkpoint holds a running widget session, so that the activity only
+     * takes over (and hands back) sessions owned by the widgets.
+     * @param context
+     */
+    public static boolean isWidgetSession(Context context) {
+        Assert.assertNotNull(context);
+
+        byte[] checkpoint;
+        synchronized (TimerCheckpoint.class) {
+            checkpoint = getLatest(context);
+        }
+        if ((checkpoint == null) || (ByteBuffer.wrap(checkpoint).getInt() != VERSION)) return false;
+
+        int flags = ByteBuffer.wrap(checkpoint).getInt(4);
+        return ((flags & FLAG_RUNNING) != 0) && ((flags & FLAG_WIDGET) != 0);
+    }
+
+    /**
+     * Returns the latest checkpoint, reading it from storage if this process has none (while
+     * holding the class lock).
+     * @param context
+     * @return the checkpoint, or null if there is none.
+     */
+    private static byte[] getLatest(Context context) {
+        if (latest == null) {
+            latest = read(getFile(context));
+            latestRead = true;
+        }
+
+        return latest;
+    }
+
+    /**
+     * Encodes the state of the given timer, leaving the boot id to be stamped by the writer, since
+     * reading it is file I/O.
+     * @param timer
+     * @param widgetSession
+     */
+    private static byte[] encode(Timer timer, boolean widgetSession) {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.putInt(VERSION);
+        buffer.putInt(timer.isRunning() ? (FLAG_RUNNING | (widgetSession ? FLAG_WIDGET : 0)) : 0);
+        buffer.putLong(timer.getInterval());
+        buffer.putLong(timer.getRemainingInterval());
+        if (timer.isRunning()) {
+            buffer.putLong(timer.getDeadline());
+            buffer.putLong(System.currentTimeMillis() + (timer.getDeadline() - SystemClock.elapsedRealtime()));
+        }
+        else {
+            buffer.putLong(0L);
+            buffer.putLong(0L);
+        }
+        buffer.putLong(0L);
+        buffer.putLong(0L);
+
+        return buffer.array();
+    }
+
+    /**
+     * Stamps the given checkpoint with the boot id and writes it atomically to the given file (on
+     * the writer thread).
+     * @param file
+     * @param checkpoint
+     */
+    private static void write(File file, byte[] checkpoint) {
+        // stamp a copy, since the checkpoint is shared with restore
+        UUID bootId = getBootId();
+        checkpoint = checkpoint.clone();
+        ByteBuffer.wrap(checkpoint).putLong(BOOT_ID_OFFSET, bootId.getMostSignificantBits()).putLong(BOOT_ID_OFFSET + 8, bootId.getLeastSignificantBits());
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream stream = new FileOutputStream(tempFile);
+            try {
+                stream.write(checkpoint);
+                stream.getFD().sync();
+            }
+            finally {
+                stream.close();
+            }
+            if (!tempFile.renameTo(file)) throw new IOException("Unable to rename " + tempFile);
+        }
+        catch (IOException exception) {
+            Log.e(TAG, "Unable to write checkpoint", exception);
+        }
+    }
+
+    /**
+     * Reads the checkpoint from the given file by memory-mapping it.
+     * @param file
+     * @return the checkpoint, or null if there is none.
+     */
+    private static byte[] read(File file) {
+        if (!file.exists() || (file.length() != SIZE)) return null;
+
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                byte[] checkpoint = new byte[SIZE];
+                randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE).get(checkpoint);
+                return checkpoint;
+            }
+            finally {
+                randomAccessFile.close();
+            }
+        }
+        catch (IOException exception) {
+            Log.e(TAG, "Unable to read checkpoint", exception);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the checkpoint file.
+     * @param context
+     */
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Returns the identity of the current boot: the kernel's boot id, or if it cannot be read, an
+     * id derived from the (wall clock) boot time to the nearest minute.
+     */
+    private static UUID getBootId() {
+        synchronized (bootIdLock) {
+            if (bootId != null) return bootId;
+
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(BOOT_ID_PATH));
+                try {
+                    bootId = UUID.fromString(reader.readLine().trim());
+                }
+                finally {
+                    reader.close();
+                }
+            }
+            catch (Exception exception) {
+                long bootTime = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+                bootId = new UUID(0L, Math.round(bootTime / (60 * 1000.0)));
+            }
+
+            return bootId;
+        }
+    }
+}
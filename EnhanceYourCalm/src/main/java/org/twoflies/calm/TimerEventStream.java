@@ -0,0 +1,298 @@
+package org.twoflies.calm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+
+import junit.framework.Assert;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Stream of timer events with any number of subscribers.  Publishing hands a single message to a
+ * shared dispatch thread, which fans it out to the subscribers, so the cost to the publishing
+ * (main) thread does not grow with the number of subscribers.  Each subscriber chooses the thread
+ * its events are delivered on, how ticks are coalesced and the size of its (bounded) buffer, so a
+ * slow subscriber only delays, and drops, its own events.
+ */
+public class TimerEventStream {
+
+    // Coalescing policies
+    public static final int COALESCE_LATEST_ONLY = 0;  // pending ticks are replaced by the latest
+    public static final int COALESCE_EVERY_SECOND = 1;  // at most one tick per displayed second
+    public static final int COALESCE_STATE_CHANGES_ONLY = 2;  // no ticks at all
+
+    public static final int DEFAULT_CAPACITY = 8;
+
+    // Shared dispatch thread, started with the first stream
+    private static HandlerThread dispatchThread = null;
+
+    private List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private Handler handler = null;
+
+    public TimerEventStream() {
+        this.handler = new Handler(getDispatchLooper()) {
+            @Override
+            public void handleMessage(Message message) {
+                dispatch((Event)message.obj);
+            }
+        };
+    }
+
+    /**
+     * Subscribes the given listener.
+     * @param listener
+     * @param handler Handler of the thread on which events are delivered, or null for the main thread.
+     * @param coalescing one of the COALESCE_ constants.
+     * @param capacity the maximum number of undelivered events, > 0.
+     * @return the subscription, which can be passed to unsubscribe.
+     */
+    public Subscription subscribe(OnTimerEventListener listener, Handler handler, int coalescing, int capacity) {
+        Assert.assertNotNull(listener);
+        Assert.assertTrue((coalescing >= COALESCE_LATEST_ONLY) && (coalescing <= COALESCE_STATE_CHANGES_ONLY));
+        Assert.assertTrue(capacity > 0);
+
+        Subscription subscription = new Subscription(listener, (handler != null) ? handler : new Handler(Looper.getMainLooper()), coalescing, capacity);
+        this.subscriptions.add(subscription);
+
+        return subscription;
+    }
+
+    /**
+     * Unsubscribes the given subscription.  Events already delivered to its thread are dropped.
+     * @param subscription
+     */
+    public void unsubscribe(Subscription subscription) {
+        Assert.assertNotNull(subscription);
+
+        this.subscriptions.remove(subscription);
+        subscription.cancel();
+    }
+
+    /**
+     * Returns whether there are any subscribers.
+     */
+    public boolean hasSubscribers() {
+        return !this.subscriptions.isEmpty();
+    }
+
+    /**
+     * Publishes the given event to all subscribers.
+     * @param event
+     */
+    public void publish(Event event) {
+        Assert.assertNotNull(event);
+
+        if (this.subscriptions.isEmpty()) return;
+
+        this.handler.obtainMessage(0, event).sendToTarget();
+    }
+
+    /**
+     * Offers the given event to all subscribers (on the dispatch thread).
+     * @param event
+     */
+    private void dispatch(Event event) {
+        for (Subscription subscription : this.subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * Returns the looper of the shared dispatch thread, starting it if necessary.
+     */
+    private static synchronized Looper getDispatchLooper() {
+        if (dispatchThread == null) {
+            dispatchThread = new HandlerThread("TimerEventStream");
+            dispatchThread.start();
+        }
+
+        return dispatchThread.getLooper();
+    }
+
+    /**
+     * A timer event.
+     */
+    public static class Event {
+
+        public static final int TYPE_STARTED = 0;
+        public static final int TYPE_STOPPED = 1;
+        public static final int TYPE_TICK = 2;
+        public static final int TYPE_ELAPSED = 3;
+
+        private int type = TYPE_TICK;
+        private long remainingInterval = 0L;
+        private long deadline = 0L;
+
+        /**
+         * Creates an event.
+         * @param type one of the TYPE_ constants.
+         * @param remainingInterval
+         * @param deadline the timer's deadline (see Timer.getDeadline) if it is running, 0 otherwise.
+         */
+        public Event(int type, long remainingInterval, long deadline) {
+            Assert.assertTrue((type >= TYPE_STARTED) && (type <= TYPE_ELAPSED));
+            Assert.assertTrue(remainingInterval >= 0L);
+            Assert.assertTrue(deadline >= 0L);
+
+            this.type = type;
+            this.remainingInterval = remainingInterval;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Returns the type of this event (one of the TYPE_ constants).
+         */
+        public int getType() {
+            return this.type;
+        }
+
+        /**
+         * Returns the remaining interval of the timer when this event occurred.
+         */
+        public long getRemainingInterval() {
+            return this.remainingInterval;
+        }
+
+        /**
+         * Returns the (SystemClock.elapsedRealtime) time at which the timer elapses, if it was
+         * running when this event occurred, 0 otherwise.  Unlike the remaining interval, the
+         * deadline does not go stale while the event is being delivered.
+         */
+        public long getDeadline() {
+            return this.deadline;
+        }
+
+        /**
+         * Returns whether this event is a state change (rather than a tick).
+         */
+        public boolean isStateChange() {
+            return (this.type != TYPE_TICK);
+        }
+    }
+
+    /**
+     * A subscriber's buffer and delivery policy.
+     */
+    public static class Subscription implements Runnable {
+
+        private OnTimerEventListener listener = null;
+        private Handler handler = null;
+        private int coalescing = COALESCE_LATEST_ONLY;
+        private int capacity = 0;
+        //
+        private ArrayDeque<Event> buffer = null;
+        private long lastSecond = -1L;
+        private boolean posted = false;
+        private boolean cancelled = false;
+        private int droppedCount = 0;
+
+        private Subscription(OnTimerEventListener listener, Handler handler, int coalescing, int capacity) {
+            this.listener = listener;
+            this.handler = handler;
+            this.coalescing = coalescing;
+            this.capacity = capacity;
+            this.buffer = new ArrayDeque<Event>(capacity);
+        }
+
+        /**
+         * Returns the number of events dropped because the buffer was full.
+         */
+        public synchronized int getDroppedCount() {
+            return this.droppedCount;
+        }
+
+        /* Runnable */
+
+        @Override
+        public void run() {
+            // deliver all buffered events (on the subscriber's thread)
+            while (true) {
+                Event event;
+                synchronized (this) {
+                    event = this.buffer.poll();
+                    if ((event == null) || this.cancelled) {
+                        this.posted = false;
+                        return;
+                    }
+                }
+                this.listener.onTimerEvent(event);
+            }
+        }
+
+        /**
+         * Buffers the given event according to the coalescing policy and capacity, and schedules
+         * delivery (on the dispatch thread).
+         * @param event
+         */
+        private synchronized void offer(Event event) {
+            if (this.cancelled) return;
+
+            if (!event.isStateChange()) {
+                if (this.coalescing == COALESCE_STATE_CHANGES_ONLY) return;
+
+                if (this.coalescing == COALESCE_EVERY_SECOND) {
+                    long second = event.getRemainingInterval() / 1000;
+                    if (second == this.lastSecond) return;
+                    this.lastSecond = second;
+                }
+                else if ((this.buffer.peekLast() != null) && !this.buffer.peekLast().isStateChange()) {
+                    // replace the pending tick with the latest
+                    this.buffer.pollLast();
+                }
+            }
+            else {
+                // the next tick is always delivered after a state change
+                this.lastSecond = -1L;
+            }
+
+            if (this.buffer.size() == this.capacity) {
+                // make room, preferring to drop the oldest tick
+                this.droppedCount++;
+                if (!this.removeOldestTick()) this.buffer.poll();
+            }
+            this.buffer.offer(event);
+
+            if (!this.posted) {
+                this.posted = true;
+                this.handler.post(this);
+            }
+        }
+
+        /**
+         * Removes the oldest buffered tick.
+         * @return true if a tick was removed, false otherwise.
+         */
+        private boolean removeOldestTick() {
+            Iterator<Event> iterator = this.buffer.iterator();
+            while (iterator.hasNext()) {
+                if (!iterator.next().isStateChange()) {
+                    iterator.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Cancels this subscription, dropping all undelivered events.
+         */
+        private synchronized void cancel() {
+            this.cancelled = true;
+            this.buffer.clear();
+            this.handler.removeCallbacks(this);
+            this.posted = false;
+        }
+    }
+
+    /**
+     * Interface for timer event listeners.
+     */
+    public interface OnTimerEventListener {
+        void onTimerEvent(Event event);
+    }
+}
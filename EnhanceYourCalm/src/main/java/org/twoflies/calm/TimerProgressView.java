@@ -2,30 +2,49 @@ package org.twoflies.calm;
 
 import android.content.Context;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.DashPathEffect;
+import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Path;
 import android.graphics.RectF;
 import android.util.AttributeSet;
+import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewConfiguration;
 
 import junit.framework.Assert;
 
 /**
- * Custom view to display the current progress and instructional message.
+ * Custom view to display the current progress and instructional message.  While enabled as a
+ * dial, the marker can be dragged around the ring to choose an interval.
  */
 public class TimerProgressView extends View {
 
     private static final float TEXT_SIZE = 50.0f;
+    private static final float MARKER_RADIUS = 10.0f;
+    private static final float ARC_STROKE_WIDTH = 12.0f;
+
+    // Interval of a full turn of the dial, the interval it snaps to, and the touch radius (dp)
+    // around the marker which starts a drag
+    private static final long DIAL_MAX_INTERVAL = 60 * 60 * 1000;  // 60 minutes
+    private static final long DIAL_STEP_INTERVAL = 60 * 1000;  // 1 minute
+    private static final float DIAL_TOUCH_RADIUS_DP = 32.0f;
+
+    // Size of the space in which the buddha path is designed (3:4 width:height), and its stroke
+    private static final float BUDDHA_WIDTH = 600.0f;
+    private static final float BUDDHA_HEIGHT = 800.0f;
+    private static final float BUDDHA_STROKE_WIDTH = 44.0f;
+    private static final Path BUDDHA_PATH = createBuddhaPath();
 
     private Paint dashedPaint = null;
     private Paint solidPaint = null;
     private Paint markerPaint = null;
     private Paint imagePaint = null;
     private Paint messagePaint = null;
-    private Bitmap buddhaBitmap = null;
+    private Path buddhaPath = null;
+    private Matrix buddhaMatrix = null;
     //
     private float xCenter = 0.0f;
     private float yCenter = 0.0f;
@@ -40,6 +59,17 @@ public class TimerProgressView extends View {
     //
     private float percentage = 0.0f;
     private String message = null;
+    //
+    private boolean dialEnabled = false;
+    private boolean dialTouched = false;  // touched down on the marker, may become a drag
+    private boolean dragging = false;
+    private long dialInterval = 0L;
+    private float dialTouchRadius = 0.0f;
+    private float touchSlop = 0.0f;
+    private float xDown = 0.0f;
+    private float yDown = 0.0f;
+    private RectF dirtyBounds = null;
+    private OnDialListener dialListener = null;
 
     public TimerProgressView(Context context, AttributeSet attributes) {
         super(context, attributes);
@@ -54,7 +84,7 @@ public class TimerProgressView extends View {
         this.solidPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         this.solidPaint.setColor(Resources.getSystem().getColor(android.R.color.holo_blue_light));
         this.solidPaint.setStyle(Paint.Style.STROKE);
-        this.solidPaint.setStrokeWidth(12.0f);
+        this.solidPaint.setStrokeWidth(ARC_STROKE_WIDTH);
         this.solidPaint.setStrokeCap(Paint.Cap.ROUND);
 
         this.markerPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -62,11 +92,22 @@ public class TimerProgressView extends View {
         this.markerPaint.setStyle(Paint.Style.FILL);
 
         this.imagePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        this.imagePaint.setColor(Color.WHITE);
+        this.imagePaint.setStyle(Paint.Style.STROKE);
+        this.imagePaint.setStrokeCap(Paint.Cap.ROUND);
+        this.imagePaint.setStrokeJoin(Paint.Join.ROUND);
+
+        this.buddhaPath = new Path();
+        this.buddhaMatrix = new Matrix();
 
         this.messagePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         this.messagePaint.setColor(Resources.getSystem().getColor(android.R.color.holo_blue_light));
         this.messagePaint.setTextSize(TEXT_SIZE);
         this.messagePaint.setTextAlign(Paint.Align.CENTER);
+
+        this.dialTouchRadius = DIAL_TOUCH_RADIUS_DP * this.getResources().getDisplayMetrics().density;
+        this.touchSlop = ViewConfiguration.get(context).getScaledTouchSlop();
+        this.dirtyBounds = new RectF();
     }
 
     @Override
@@ -79,17 +120,84 @@ public class TimerProgressView extends View {
 
     @Override
     protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
+        boolean traced = Tracer.beginSection("TimerProgressView.onDraw");
+        try {
+            super.onDraw(canvas);
+            EnergyEstimator.getSessionEstimator().recordFrame();
+
+            canvas.drawCircle(this.xCenter, this.yCenter, this.radius, this.dashedPaint);
+            // progress arc
+            canvas.drawArc(this.bounds, 270.0f, this.sweepAngle, false, this.solidPaint);
+            // marker
+            canvas.drawCircle(this.xMarker, this.yMarker, MARKER_RADIUS, this.markerPaint);
+            // buddha
+            canvas.drawPath(this.buddhaPath, this.imagePaint);
+            // message
+            canvas.drawText(this.message, this.xMessage, this.yMessage, this.messagePaint);
+        }
+        finally {
+            Tracer.endSection(traced);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                // a drag starts on the marker once the touch moves beyond the touch slop, until
+                // then (and anywhere else) it is a click
+                this.dialTouched = this.dialEnabled && (Math.hypot(event.getX() - this.xMarker, event.getY() - this.yMarker) <= this.dialTouchRadius);
+                this.dragging = false;
+                this.xDown = event.getX();
+                this.yDown = event.getY();
+                break;
+            case MotionEvent.ACTION_MOVE:
+                if (this.dialTouched && !this.dragging && (Math.hypot(event.getX() - this.xDown, event.getY() - this.yDown) > this.touchSlop)) {
+                    this.startDrag(event);
+                }
+                if (this.dragging) {
+                    this.updateDial(event.getX(), event.getY());
+                    return true;
+                }
+                break;
+            case MotionEvent.ACTION_UP:
+                this.dialTouched = false;
+                if (this.dragging) {
+                    this.dragging = false;
+                    // only a drag which chose an interval releases one
+                    if ((this.dialListener != null) && (this.dialInterval > 0L)) this.dialListener.onDialReleased(this.dialInterval);
+                    return true;
+                }
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                this.dialTouched = false;
+                if (this.dragging) {
+                    this.dragging = false;
+                    if (this.dialListener != null) this.dialListener.onDialCancelled();
+                    return true;
+                }
+                break;
+        }
+
+        return super.onTouchEvent(event);
+    }
+
+    /**
+     * Enables or disables choosing an interval by dragging the marker.
+     * @param dialEnabled
+     */
+    public void setDialEnabled(boolean dialEnabled) {
+        this.dialEnabled = dialEnabled;
+    }
+
+    /**
+     * Sets the listener notified as an interval is chosen with the dial.
+     * @param listener
+     */
+    public void setOnDialListener(OnDialListener listener) {
+        // listener can be null
 
-        canvas.drawCircle(this.xCenter, this.yCenter, this.radius, this.dashedPaint);
-        // progress arc
-        canvas.drawArc(this.bounds, 270.0f, this.sweepAngle, false, this.solidPaint);
-        // marker
-        canvas.drawCircle(this.xMarker, this.yMarker, 10.0f, this.markerPaint);
-        // buddha
-        canvas.drawBitmap(this.buddhaBitmap, null, this.imageBounds, this.imagePaint);
-        // message
-        canvas.drawText(this.message, this.xMessage, this.yMessage, this.messagePaint);
+        this.dialListener = listener;
     }
 
     /**
@@ -106,58 +214,160 @@ public class TimerProgressView extends View {
         // only percentage based parameters need to be recalculated
         this.calculatePercentage();
 
+        Tracer.increment(Tracer.COUNTER_INVALIDATIONS);
+        this.invalidate();
+    }
+
+    /**
+     * Sets the color in which the buddha is drawn (white by default).
+     * @param color
+     */
+    public void setImageTint(int color) {
+        this.imagePaint.setColor(color);
+
         this.invalidate();
     }
 
     /**
-     * Calculates the bounds and positions of all drawn items and loads the bitmap image.
+     * Calculates the bounds and positions of all drawn items and scales the buddha path.
      * @param w
      * @param h
      */
     private void calculateBounds(int w, int h) {
-        float xPadding = (float)(this.getPaddingLeft() + this.getPaddingLeft());
-        float yPadding = (float)(this.getPaddingTop() + this.getPaddingBottom());
-
-        float width = w - xPadding;
-        float height = h - yPadding;
-        float diameter = Math.min(width, height);
-
-        // calculate center and radius of circle
-        this.xCenter = this.getPaddingLeft() + (width / 2.0f);
-        this.yCenter = this.getPaddingTop() + (height / 2.0f) - this.messagePaint.getTextSize();
-        this.radius = diameter / 2.0f;
-
-        // calculate bounding box of circle
-        float xPosition = this.xCenter - this.radius;
-        float yPosition = this.yCenter - this.radius;
-        this.bounds = new RectF(xPosition, yPosition,
-                                xPosition + diameter, yPosition + diameter);
-
-        // image to be display has a ratio of 3:4 width:height, so use some geometry to calculate
-        // a bounding box for the image that fits inside the circle
-        float xOffset = (3.0f / 5.0f) * this.radius;
-        float yOffset = (4.0f / 5.0f) * this.radius;
-        this.imageBounds = new RectF(this.xCenter - xOffset, this.yCenter - yOffset,
-                                this.xCenter + xOffset, this.yCenter + yOffset);
-
-        // get the size of the image to be loaded
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeResource(this.getResources(), R.drawable.ic_buddha, options);
-
-        // calculate a sub-sampling rate if the image to be loaded is bigger (substantially) than
-        // the bounds into which it will be drawn
-        float sampleSize = 1.0f;
-        if ((options.outWidth > this.imageBounds.width()) || (options.outHeight > this.imageBounds.height())) {
-            sampleSize = (options.outWidth > options.outHeight) ? (options.outHeight / this.imageBounds.height()) : (options.outWidth / this.imageBounds.width());
+        boolean traced = Tracer.beginSection("TimerProgressView.calculateBounds");
+        try {
+            float xPadding = (float)(this.getPaddingLeft() + this.getPaddingLeft());
+            float yPadding = (float)(this.getPaddingTop() + this.getPaddingBottom());
+
+            float width = w - xPadding;
+            float height = h - yPadding;
+            float diameter = Math.min(width, height);
+
+            // calculate center and radius of circle
+            this.xCenter = this.getPaddingLeft() + (width / 2.0f);
+            this.yCenter = this.getPaddingTop() + (height / 2.0f) - this.messagePaint.getTextSize();
+            this.radius = diameter / 2.0f;
+
+            // calculate bounding box of circle
+            float xPosition = this.xCenter - this.radius;
+            float yPosition = this.yCenter - this.radius;
+            this.bounds = new RectF(xPosition, yPosition,
+                                    xPosition + diameter, yPosition + diameter);
+
+            // image to be display has a ratio of 3:4 width:height, so use some geometry to calculate
+            // a bounding box for the image that fits inside the circle
+            float xOffset = (3.0f / 5.0f) * this.radius;
+            float yOffset = (4.0f / 5.0f) * this.radius;
+            this.imageBounds = new RectF(this.xCenter - xOffset, this.yCenter - yOffset,
+                                    this.xCenter + xOffset, this.yCenter + yOffset);
+
+            // scale the buddha path (and its stroke) from its design space to exactly the image bounds,
+            // so no bitmap needs to be decoded
+            float scale = this.imageBounds.width() / BUDDHA_WIDTH;
+            this.buddhaMatrix.setScale(scale, this.imageBounds.height() / BUDDHA_HEIGHT);
+            this.buddhaMatrix.postTranslate(this.imageBounds.left, this.imageBounds.top);
+            BUDDHA_PATH.transform(this.buddhaMatrix, this.buddhaPath);
+            this.imagePaint.setStrokeWidth(BUDDHA_STROKE_WIDTH * scale);
+
+            // calculate the center point of the message to be displayed
+            this.xMessage = this.xCenter;
+            this.yMessage = this.getPaddingTop() + height + (this.messagePaint.getTextSize() / 2.0f);
+        }
+        finally {
+            Tracer.endSection(traced);
         }
-        options.inSampleSize = (int)sampleSize;
-        options.inJustDecodeBounds = false;
-        this.buddhaBitmap = BitmapFactory.decodeResource(this.getResources(), R.drawable.ic_buddha, options);
+    }
+
+    /**
+     * Starts dragging the marker, cancelling the click the touch would otherwise be.
+     * @param event
+     */
+    private void startDrag(MotionEvent event) {
+        this.dragging = true;
+        this.dialInterval = 0L;
+        this.getParent().requestDisallowInterceptTouchEvent(true);
 
-        // calculate the center point of the message to be displayed
-        this.xMessage = this.xCenter;
-        this.yMessage = this.getPaddingTop() + height + (this.messagePaint.getTextSize() / 2.0f);
+        MotionEvent cancelEvent = MotionEvent.obtain(event);
+        cancelEvent.setAction(MotionEvent.ACTION_CANCEL);
+        super.onTouchEvent(cancelEvent);
+        cancelEvent.recycle();
+    }
+
+    /**
+     * Updates the dial from the given touch position, snapping to DIAL_STEP_INTERVAL, and
+     * invalidates only the part of the ring that changed.  Allocates nothing, since it is called
+     * for every move event.
+     * @param x
+     * @param y
+     */
+    private void updateDial(float x, float y) {
+        // angle clockwise from the top of the ring
+        float angle = (float)Math.toDegrees(Math.atan2(x - this.xCenter, this.yCenter - y));
+        if (angle < 0.0f) angle += 360.0f;
+
+        // don't wrap around past the top of the ring while dragging
+        float previousAngle = this.sweepAngle;
+        if ((this.dialInterval > 0L) && (Math.abs(angle - previousAngle) > 180.0f)) {
+            angle = (previousAngle > 180.0f) ? 360.0f : 0.0f;
+        }
+
+        long steps = Math.round((angle / 360.0f) * (DIAL_MAX_INTERVAL / DIAL_STEP_INTERVAL));
+        long interval = Math.max(steps, 1L) * DIAL_STEP_INTERVAL;
+        if (interval == this.dialInterval) return;
+
+        this.dialInterval = interval;
+        this.percentage = interval / (float)DIAL_MAX_INTERVAL;
+        this.calculatePercentage();
+
+        this.invalidateArc(previousAngle, this.sweepAngle);
+        if (this.dialListener != null) this.dialListener.onDialChanged(interval);
+    }
+
+    /**
+     * Invalidates the bounds of the part of the ring between the given angles (clockwise from the
+     * top of the ring), including the marker at either end.
+     * @param fromAngle
+     * @param toAngle
+     */
+    private void invalidateArc(float fromAngle, float toAngle) {
+        float startAngle = Math.min(fromAngle, toAngle);
+        float endAngle = Math.max(fromAngle, toAngle);
+
+        this.setRingPoint(startAngle);
+        this.includeRingPoint(endAngle);
+        // the extremes of the ring in between
+        for (float angle = (float)(Math.ceil(startAngle / 90.0f) * 90.0f); angle < endAngle; angle += 90.0f) {
+            this.includeRingPoint(angle);
+        }
+
+        float inset = MARKER_RADIUS + ARC_STROKE_WIDTH;
+        this.dirtyBounds.inset(-inset, -inset);
+        Tracer.increment(Tracer.COUNTER_INVALIDATIONS);
+        this.invalidate((int)Math.floor(this.dirtyBounds.left), (int)Math.floor(this.dirtyBounds.top),
+                        (int)Math.ceil(this.dirtyBounds.right), (int)Math.ceil(this.dirtyBounds.bottom));
+    }
+
+    /**
+     * Sets the dirty bounds to the point on the ring at the given angle.
+     * @param angle
+     */
+    private void setRingPoint(float angle) {
+        double radians = Math.toRadians(angle);
+        float x = (float)(this.xCenter + (Math.sin(radians) * this.radius));
+        float y = (float)(this.yCenter - (Math.cos(radians) * this.radius));
+
+        this.dirtyBounds.set(x, y, x, y);
+    }
+
+    /**
+     * Extends the dirty bounds to include the point on the ring at the given angle.
+     * @param angle
+     */
+    private void includeRingPoint(float angle) {
+        double radians = Math.toRadians(angle);
+
+        this.dirtyBounds.union((float)(this.xCenter + (Math.sin(radians) * this.radius)),
+                               (float)(this.yCenter - (Math.cos(radians) * this.radius)));
     }
 
     /**
@@ -172,4 +382,34 @@ public class TimerProgressView extends View {
         this.xMarker = (float)(this.xCenter + (Math.sin(radians) * this.radius));
         this.yMarker = (float)(this.yCenter - (Math.cos(radians) * this.radius));
     }
+
+    /**
+     * Creates the buddha outline (head, body and base drawn as a single stroke) in a
+     * BUDDHA_WIDTH x BUDDHA_HEIGHT design space.
+     */
+    private static Path createBuddhaPath() {
+        Path path = new Path();
+
+        // head, open at the bottom
+        path.arcTo(new RectF(104.0f, 18.0f, 384.0f, 218.0f), 98.0f, 322.0f, true);
+        // back, flowing out of the head
+        path.cubicTo(360.0f, 228.0f, 420.0f, 232.0f, 450.0f, 260.0f);
+        path.cubicTo(490.0f, 300.0f, 500.0f, 380.0f, 470.0f, 510.0f);
+        // base, wrapping around from the right
+        path.cubicTo(520.0f, 520.0f, 570.0f, 560.0f, 570.0f, 620.0f);
+        path.cubicTo(570.0f, 700.0f, 450.0f, 770.0f, 300.0f, 775.0f);
+        path.cubicTo(130.0f, 775.0f, 30.0f, 720.0f, 30.0f, 670.0f);
+        path.cubicTo(30.0f, 620.0f, 80.0f, 575.0f, 150.0f, 565.0f);
+
+        return path;
+    }
+
+    /**
+     * Interface for dial listeners.
+     */
+    public interface OnDialListener {
+        void onDialChanged(long interval);
+        void onDialReleased(long interval);
+        void onDialCancelled();
+    }
 }
@@ -0,0 +1,234 @@
+package org.twoflies.calm;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+import junit.framework.Assert;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+
+/**
+ * Home-screen widget to start, pause and show the timer.  The countdown is rendered by the
+ * system's Chronometer from the timer's deadline, so the app process only runs on state changes
+ * (start, pause, reset, interval change and elapse).
+ */
+public class TimerWidgetProvider extends AppWidgetProvider {
+
+    private static final String TAG = "TimerWidgetProvider";
+
+    // Actions of the widget's PendingIntents (package visible for TimerWidgetProviderTest)
+    static final String ACTION_SWITCH = "org.twoflies.calm.action.SWITCH";
+    static final String ACTION_NEXT_INTERVAL = "org.twoflies.calm.action.NEXT_INTERVAL";
+    static final String ACTION_ELAPSED = "org.twoflies.calm.action.ELAPSED";
+
+    // RemoteViews.setChronometerCountDown (API 24+), or null if not available
+    private static Method setChronometerCountDownMethod = null;
+
+    static {
+        try {
+            setChronometerCountDownMethod = RemoteViews.class.getMethod("setChronometerCountDown", int.class, boolean.class);
+        }
+        catch (Exception exception) {
+            setChronometerCountDownMethod = null;
+        }
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Tracer.increment(Tracer.COUNTER_WAKEUPS);
+        EnergyEstimator.getSessionEstimator().recordWakeup();
+
+        String action = intent.getAction();
+        if (ACTION_SWITCH.equals(action)) {
+            this.switchTimerState(context);
+        }
+        else if (ACTION_NEXT_INTERVAL.equals(action)) {
+            this.selectNextInterval(context);
+        }
+        else if (ACTION_ELAPSED.equals(action)) {
+            this.elapseTimer(context);
+        }
+        else {
+            super.onReceive(context, intent);
+        }
+    }
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        Timer timer = loadTimer(context);
+        appWidgetManager.updateAppWidget(appWidgetIds, createViews(context, timer));
+    }
+
+    /**
+     * Updates all widgets from the given timer and saves its state as the shared checkpoint.
+     * @param context
+     * @param timer
+     * @param widgetSession whether the timer, if running, is owned by the widgets.
+     */
+    public static void update(Context context, Timer timer, boolean widgetSession) {
+        Assert.assertNotNull(context);
+        Assert.assertNotNull(timer);
+
+        TimerCheckpoint.save(context, timer, widgetSession);
+
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        appWidgetManager.updateAppWidget(new ComponentName(context, TimerWidgetProvider.class), createViews(context, timer));
+    }
+
+    /**
+     * Sets the alarm which wakes the process when the running timer elapses, for when the timer
+     * is started from a widget or handed back to the widgets by the activity.
+     * @param context
+     * @param deadline the timer's deadline (see Timer.getDeadline).
+     */
+    public static void setElapseAlarm(Context context, long deadline) {
+        Assert.assertNotNull(context);
+
+        AlarmManager alarmManager = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, deadline, createPendingIntent(context, ACTION_ELAPSED));
+    }
+
+    /**
+     * Cancels the elapse alarm set when the timer was started from a widget, for when the
+     * activity takes over the running timer.
+     * @param context
+     */
+    public static void cancelElapseAlarm(Context context) {
+        Assert.assertNotNull(context);
+
+        AlarmManager alarmManager = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(createPendingIntent(context, ACTION_ELAPSED));
+    }
+
+    /**
+     * Starts, stops or resets the timer based on the current state.
+     * @param context
+     */
+    private void switchTimerState(Context context) {
+        Timer timer = loadTimer(context);
+        if (timer.isRunning()) {
+            timer.stop();
+            cancelElapseAlarm(context);
+        }
+        else if (timer.isElapsed()) {
+            timer.reset();
+        }
+        else {
+            timer.start();
+            // starting a new session reset the estimate, so record the wakeup which started it
+            if (timer.getRemainingInterval() == timer.getInterval()) EnergyEstimator.getSessionEstimator().recordWakeup();
+            // the process is woken once more, when the timer elapses
+            setElapseAlarm(context, timer.getDeadline());
+        }
+        update(context, timer, true);
+    }
+
+    /**
+     * Sets the timer to the next of the Dialogs.INTERVAL_VALUES, if it is not running.
+     * @param context
+     */
+    private void selectNextInterval(Context context) {
+        Timer timer = loadTimer(context);
+        if (timer.isRunning()) return;
+
+        long[] values = Dialogs.INTERVAL_VALUES;
+        int index = 0;
+        while ((index < values.length) && (values[index] <= timer.getInterval())) index++;
+        timer.setInterval(values[index % values.length]);
+        update(context, timer, true);
+    }
+
+    /**
+     * Plays the "alarm" if the timer started from a widget has elapsed.
+     * @param context
+     */
+    private void elapseTimer(Context context) {
+        Timer timer = loadTimer(context);  // restored as elapsed
+        if (!timer.isElapsed()) return;
+
+        update(context, timer, true);
+        // played by a service, since this receiver returns immediately
+        AlarmService.play(context);
+        MainActivity.showEnergyEstimate(context);
+
+        if (Tracer.isEnabled()) Log.d(TAG, "Trace counters: " + Tracer.dumpCounters());
+    }
+
+    /**
+     * Loads a non-ticking timer from the shared checkpoint.
+     * @param context
+     */
+    private static Timer loadTimer(Context context) {
+        Timer timer = new Timer(Timer.DEFAULT_INTERVAL, false);
+        TimerCheckpoint.restore(context, timer);
+
+        return timer;
+    }
+
+    /**
+     * Creates the widget views showing the given timer.
+     * @param context
+     * @param timer
+     */
+    private static RemoteViews createViews(Context context, Timer timer) {
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_timer);
+
+        // let the system's Chronometer count down to the deadline if it can, or up from the start
+        // of the session otherwise
+        boolean countDown = setChronometerCountDown(views);
+        long now = SystemClock.elapsedRealtime();
+        long base = countDown ? (now + timer.getRemainingInterval()) : (now - (timer.getInterval() - timer.getRemainingInterval()));
+        views.setChronometer(R.id.widgetChronometer, base, null, timer.isRunning());
+
+        views.setTextViewText(R.id.widgetIntervalView, String.format(Locale.getDefault(), context.getString(R.string.label_X_minutes), timer.getInterval() / (60 * 1000)));
+
+        int switchLabel;
+        if (timer.isRunning()) switchLabel = R.string.button_pause;
+        else if (timer.isElapsed()) switchLabel = R.string.button_reset;
+        else switchLabel = R.string.button_start;
+        views.setTextViewText(R.id.widgetSwitchButton, context.getString(switchLabel));
+
+        views.setOnClickPendingIntent(R.id.widgetSwitchButton, createPendingIntent(context, ACTION_SWITCH));
+        views.setOnClickPendingIntent(R.id.widgetIntervalView, createPendingIntent(context, ACTION_NEXT_INTERVAL));
+
+        return views;
+    }
+
+    /**
+     * Makes the Chronometer of the given views count down, if supported.
+     * @param views
+     * @return true if the Chronometer counts down, false otherwise.
+     */
+    private static boolean setChronometerCountDown(RemoteViews views) {
+        if (setChronometerCountDownMethod == null) return false;
+
+        try {
+            setChronometerCountDownMethod.invoke(views, R.id.widgetChronometer, true);
+            return true;
+        }
+        catch (Exception exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates a PendingIntent broadcasting the given action to this provider.
+     * @param context
+     * @param action
+     */
+    private static PendingIntent createPendingIntent(Context context, String action) {
+        Intent intent = new Intent(context, TimerWidgetProvider.class);
+        intent.setAction(action);
+
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
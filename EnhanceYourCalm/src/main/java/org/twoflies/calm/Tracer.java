@@ -0,0 +1,138 @@
+package org.twoflies.calm;
+
+import junit.framework.Assert;
+
+import java.lang.reflect.Method;
+
+/**
+ * Utility class for named trace sections and counters on the timer, render and audio paths.
+ *
+ * Sections are forwarded to android.os.Trace when it is available (API 18+) and tracing has been
+ * enabled; otherwise (older devices, plain JVM) every call is a no-op.  Counters are emitted as
+ * trace counters where supported (API 29+), and can be dumped, e.g. when a session ends.
+ * Tracing is disabled by default and can be switched on and off at runtime.
+ */
+public class Tracer {
+
+    // Counter indexes
+    public static final int COUNTER_TICKS = 0;
+    public static final int COUNTER_INVALIDATIONS = 1;
+    public static final int COUNTER_DECODES = 2;
+    public static final int COUNTER_WAKEUPS = 3;
+    private static final int COUNTER_COUNT = 4;
+    private static final String[] COUNTER_NAMES = {"ticks", "invalidations", "decodes", "wakeups"};
+
+    private static volatile boolean enabled = false;
+    private static final long[] counters = new long[COUNTER_COUNT];
+    // android.os.Trace methods (null if not available)
+    private static Method beginSectionMethod = null;
+    private static Method endSectionMethod = null;
+    private static Method setCounterMethod = null;
+
+    static {
+        // android.os.Trace is newer than the compile SDK, so look it up reflectively
+        try {
+            Class<?> traceClass = Class.forName("android.os.Trace");
+            beginSectionMethod = traceClass.getMethod("beginSection", String.class);
+            endSectionMethod = traceClass.getMethod("endSection");
+        }
+        catch (Exception exception) {
+            beginSectionMethod = null;
+            endSectionMethod = null;
+        }
+        try {
+            setCounterMethod = Class.forName("android.os.Trace").getMethod("setCounter", String.class, long.class);
+        }
+        catch (Exception exception) {
+            setCounterMethod = null;
+        }
+    }
+
+    /**
+     * Returns whether tracing is currently enabled.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables tracing.
+     * @param enabled
+     */
+    public static void setEnabled(boolean enabled) {
+        Tracer.enabled = enabled;
+    }
+
+    /**
+     * Begins a named trace section.  The result must be passed to the matching endSection call, so
+     * that toggling tracing while inside a section does not unbalance the system trace.
+     * @param name
+     * @return true if a section was begun, false otherwise.
+     */
+    public static boolean beginSection(String name) {
+        if (!enabled || (beginSectionMethod == null)) return false;
+
+        Assert.assertNotNull(name);
+
+        return invoke(beginSectionMethod, name);
+    }
+
+    /**
+     * Ends the trace section begun by the matching beginSection call.
+     * @param begun the result of the matching beginSection call.
+     */
+    public static void endSection(boolean begun) {
+        if (!begun) return;
+
+        invoke(endSectionMethod);
+    }
+
+    /**
+     * Increments the given counter if tracing is enabled, emitting it as a trace counter where
+     * supported.
+     * @param counter one of the COUNTER_ constants.
+     */
+    public static void increment(int counter) {
+        if (!enabled) return;
+
+        long value;
+        synchronized (counters) {
+            value = ++counters[counter];
+        }
+        if (setCounterMethod != null) invoke(setCounterMethod, COUNTER_NAMES[counter], value);
+    }
+
+    /**
+     * Returns the current values of all counters (e.g. "ticks=3 invalidations=5 ..."), and resets
+     * them to 0.
+     */
+    public static String dumpCounters() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (counters) {
+            for (int index = 0; index < COUNTER_COUNT; index++) {
+                if (index > 0) builder.append(' ');
+                builder.append(COUNTER_NAMES[index]).append('=').append(counters[index]);
+                counters[index] = 0L;
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Invokes the given static android.os.Trace method, disabling tracing if it fails.
+     * @param method
+     * @param arguments
+     * @return true if the invocation succeeded, false otherwise.
+     */
+    private static boolean invoke(Method method, Object... arguments) {
+        try {
+            method.invoke(null, arguments);
+            return true;
+        }
+        catch (Exception exception) {
+            enabled = false;
+            return false;
+        }
+    }
+}